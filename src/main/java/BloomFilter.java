@@ -0,0 +1,64 @@
+import java.util.BitSet;
+
+/**
+ * Fixed-size Bloom filter over strings.
+ *
+ * A negative answer is exact, so callers only need to consult their exact
+ * store when mightContain returns true.
+ */
+public class BloomFilter {
+    private final BitSet bits;
+    private final int numBits;
+    private final int numHashes;
+
+    /**
+     * Size the filter for the expected number of entries at the given false positive rate
+     */
+    public BloomFilter(int expectedEntries, double falsePositiveRate) {
+        int n = Math.max(1, expectedEntries);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.numBits = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 64));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        this.bits = new BitSet(numBits);
+    }
+
+    public void add(String value) {
+        long hash = hash64(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            bits.set(Math.floorMod(h1 + i * h2, numBits));
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash64(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            if (!bits.get(Math.floorMod(h1 + i * h2, numBits))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        bits.clear();
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-16 chars, with a final avalanche so both halves are usable
+     */
+    private static long hash64(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,314 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Statistics of the whole collection that the search engine needs before it can
+ * score anything: the pages in the index and, for every page, its max term
+ * frequency, its length in words and the norm of its term vector; and for every
+ * word its document frequencies, collection frequency and highest frequency in
+ * any one page, so idf and score bounds need no posting list.
+ *
+ * The values are kept in primitive arrays indexed by page ID and word ID and are
+ * stored as one record, so they load with a single sequential read:
+ *
+ *   stats := version pageCount pageId* pageArrayLength maxTF[] docLength[] norm[]
+ *            termArrayLength (bodyDf titleDf df cf maxBodyTF maxTitleTF)[]
+ *
+ * The index keeps them up to date as pages are indexed (see {@link Builder});
+ * a CollectionStats object itself never changes.
+ */
+public final class CollectionStats {
+    public static final CollectionStats EMPTY = new Builder().build();
+
+    private static final int VERSION = 0x43530002;
+
+    // fields of a word, at wordId * TERM_FIELDS in terms
+    private static final int BODY_DF = 0;
+    private static final int TITLE_DF = 1;
+    private static final int DF = 2;
+    private static final int CF = 3;
+    private static final int MAX_BODY_TF = 4;
+    private static final int MAX_TITLE_TF = 5;
+    private static final int TERM_FIELDS = 6;
+
+    private final int[] pageIds;    // sorted
+    private final int[] maxTF;      // by page ID
+    private final int[] docLength;
+    private final double[] norm;
+    private final int[] terms;      // by word ID, TERM_FIELDS each
+
+    private CollectionStats(int[] pageIds, int[] maxTF, int[] docLength, double[] norm, int[] terms) {
+        this.pageIds = pageIds;
+        this.maxTF = maxTF;
+        this.docLength = docLength;
+        this.norm = norm;
+        this.terms = terms;
+    }
+
+    /**
+     * Number of pages in the index
+     */
+    public int totalDocs() {
+        return pageIds.length;
+    }
+
+    /**
+     * Page IDs of the index in increasing order; the array must not be changed
+     */
+    public int[] pageIds() {
+        return pageIds;
+    }
+
+    /**
+     * One more than the largest page ID with statistics
+     */
+    public int maxPageId() {
+        return maxTF.length;
+    }
+
+    /**
+     * Highest frequency of any word in a page, 1 for a page without words
+     */
+    public int maxTF(int pageId) {
+        return pageId < maxTF.length && maxTF[pageId] > 0 ? maxTF[pageId] : 1;
+    }
+
+    /**
+     * Number of words in a page (title and body, without stop words)
+     */
+    public int docLength(int pageId) {
+        return pageId < docLength.length ? docLength[pageId] : 0;
+    }
+
+    /**
+     * Euclidean norm of a page's vector of log-scaled term frequencies (1 + ln tf)
+     */
+    public double norm(int pageId) {
+        return pageId < norm.length ? norm[pageId] : 0;
+    }
+
+    /**
+     * Number of pages with the word in their body
+     */
+    public int bodyDf(int wordId) {
+        return term(wordId, BODY_DF);
+    }
+
+    /**
+     * Number of pages with the word in their title
+     */
+    public int titleDf(int wordId) {
+        return term(wordId, TITLE_DF);
+    }
+
+    /**
+     * Number of pages with the word in their body or title
+     */
+    public int df(int wordId) {
+        return term(wordId, DF);
+    }
+
+    /**
+     * Number of occurrences of the word in all pages, body and title
+     */
+    public int cf(int wordId) {
+        return term(wordId, CF);
+    }
+
+    /**
+     * Highest frequency of the word in the body of any page. Pages indexed again
+     * may have lowered it, so it is an upper bound rather than the exact maximum.
+     */
+    public int maxBodyTF(int wordId) {
+        return term(wordId, MAX_BODY_TF);
+    }
+
+    /**
+     * Highest frequency of the word in the title of any page, an upper bound like maxBodyTF
+     */
+    public int maxTitleTF(int wordId) {
+        return term(wordId, MAX_TITLE_TF);
+    }
+
+    private int term(int wordId, int field) {
+        int i = wordId * TERM_FIELDS + field;
+        return wordId >= 0 && i < terms.length ? terms[i] : 0;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                12 + 4 * pageIds.length + 16 * maxTF.length + 4 + 4 * terms.length);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(VERSION);
+            out.writeInt(pageIds.length);
+            for (int pageId : pageIds) {
+                out.writeInt(pageId);
+            }
+            out.writeInt(maxTF.length);
+            for (int tf : maxTF) {
+                out.writeInt(tf);
+            }
+            for (int length : docLength) {
+                out.writeInt(length);
+            }
+            for (double n : norm) {
+                out.writeDouble(n);
+            }
+            out.writeInt(terms.length / TERM_FIELDS);
+            for (int value : terms) {
+                out.writeInt(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // cannot happen when writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    public static CollectionStats fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != VERSION) {
+            throw new IOException("Unknown collection statistics format");
+        }
+        int[] pageIds = new int[in.readInt()];
+        for (int i = 0; i < pageIds.length; i++) {
+            pageIds[i] = in.readInt();
+        }
+        int length = in.readInt();
+        int[] maxTF = new int[length];
+        int[] docLength = new int[length];
+        double[] norm = new double[length];
+        for (int i = 0; i < length; i++) {
+            maxTF[i] = in.readInt();
+        }
+        for (int i = 0; i < length; i++) {
+            docLength[i] = in.readInt();
+        }
+        for (int i = 0; i < length; i++) {
+            norm[i] = in.readDouble();
+        }
+        int[] terms = new int[in.readInt() * TERM_FIELDS];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = in.readInt();
+        }
+        return new CollectionStats(pageIds, maxTF, docLength, norm, terms);
+    }
+
+    /**
+     * Collects the statistics page by page; build() takes a copy, so the builder can
+     * keep being updated while readers use what was built before.
+     */
+    public static final class Builder {
+        private int[] pageIds = new int[16];
+        private int pageCount;
+        private boolean sorted = true;
+        private int[] maxTF = new int[0];
+        private int[] docLength = new int[0];
+        private double[] norm = new double[0];
+        private int length;     // one more than the largest page ID with statistics
+        private int[] terms = new int[0];
+        private int termLength; // one more than the largest word ID with statistics
+
+        public Builder() {
+        }
+
+        public Builder(CollectionStats stats) {
+            pageIds = stats.pageIds.clone();
+            pageCount = pageIds.length;
+            maxTF = stats.maxTF.clone();
+            docLength = stats.docLength.clone();
+            norm = stats.norm.clone();
+            length = maxTF.length;
+            terms = stats.terms.clone();
+            termLength = terms.length / TERM_FIELDS;
+        }
+
+        /**
+         * Add a page to the collection; it must not be in it yet
+         */
+        public Builder addPage(int pageId) {
+            if (pageCount == pageIds.length) {
+                pageIds = Arrays.copyOf(pageIds, Math.max(16, pageCount * 2));
+            }
+            if (pageCount > 0 && pageId < pageIds[pageCount - 1]) {
+                sorted = false;
+            }
+            pageIds[pageCount++] = pageId;
+            return this;
+        }
+
+        /**
+         * Set the statistics of a page from its term vector (word frequencies)
+         */
+        public Builder setTermVector(int pageId, Iterable<Integer> frequencies) {
+            int max = 0;
+            int length = 0;
+            double sumOfSquares = 0;
+            for (int tf : frequencies) {
+                max = Math.max(max, tf);
+                length += tf;
+                double weight = 1.0 + Math.log(tf);
+                sumOfSquares += weight * weight;
+            }
+            return set(pageId, max, length, Math.sqrt(sumOfSquares));
+        }
+
+        public Builder set(int pageId, int pageMaxTF, int pageLength, double pageNorm) {
+            if (pageId >= maxTF.length) {
+                int capacity = Math.max(pageId + 1, maxTF.length * 2);
+                maxTF = Arrays.copyOf(maxTF, capacity);
+                docLength = Arrays.copyOf(docLength, capacity);
+                norm = Arrays.copyOf(norm, capacity);
+            }
+            length = Math.max(length, pageId + 1);
+            maxTF[pageId] = pageMaxTF;
+            docLength[pageId] = pageLength;
+            norm[pageId] = pageNorm;
+            return this;
+        }
+
+        /**
+         * Count a page that has a word bodyTF times in its body and titleTF times in its title
+         */
+        public Builder addTerm(int wordId, int bodyTF, int titleTF) {
+            int i = termIndex(wordId);
+            if (bodyTF > 0) terms[i + BODY_DF]++;
+            if (titleTF > 0) terms[i + TITLE_DF]++;
+            terms[i + DF]++;
+            terms[i + CF] += bodyTF + titleTF;
+            terms[i + MAX_BODY_TF] = Math.max(terms[i + MAX_BODY_TF], bodyTF);
+            terms[i + MAX_TITLE_TF] = Math.max(terms[i + MAX_TITLE_TF], titleTF);
+            return this;
+        }
+
+        /**
+         * Stop counting a page that had a word freq times, in its body and/or title;
+         * the max frequencies stay as they are
+         */
+        public Builder removeTerm(int wordId, boolean inBody, boolean inTitle, int freq) {
+            int i = termIndex(wordId);
+            if (inBody) terms[i + BODY_DF]--;
+            if (inTitle) terms[i + TITLE_DF]--;
+            terms[i + DF]--;
+            terms[i + CF] -= freq;
+            return this;
+        }
+
+        private int termIndex(int wordId) {
+            if ((wordId + 1) * TERM_FIELDS > terms.length) {
+                terms = Arrays.copyOf(terms, Math.max((wordId + 1) * TERM_FIELDS, terms.length * 2));
+            }
+            termLength = Math.max(termLength, wordId + 1);
+            return wordId * TERM_FIELDS;
+        }
+
+        public CollectionStats build() {
+            int[] ids = Arrays.copyOf(pageIds, pageCount);
+            if (!sorted) {
+                Arrays.sort(ids);
+            }
+            return new CollectionStats(ids, Arrays.copyOf(maxTF, length),
+                    Arrays.copyOf(docLength, length), Arrays.copyOf(norm, length),
+                    Arrays.copyOf(terms, termLength * TERM_FIELDS));
+        }
+    }
+}
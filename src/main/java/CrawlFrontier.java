@@ -0,0 +1,214 @@
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import jdbm.helper.FastIterator;
+import jdbm.htree.HTree;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Disk-backed crawl frontier stored in a JDBM database next to the index.
+ *
+ * Entries are numbered in the order they are discovered, so the frontier is a
+ * persistent BFS queue: head is the first entry that has not been completed and
+ * tail is the number of entries ever scheduled. Only the entries being fetched
+ * need to be in memory, and after a crash the crawl resumes from the last
+ * checkpoint instead of starting again from the seed.
+ *
+ * Every URL is scheduled at most once. URLs are expected in canonical form
+ * (see {@link UrlCanonicalizer}) and are recorded in an exact seen-set on disk
+ * with an in-memory Bloom filter in front of it, so most duplicate checks for
+ * new URLs never touch the disk.
+ */
+public class CrawlFrontier implements AutoCloseable {
+    public enum Status { PENDING, DONE, FAILED }
+
+    /**
+     * A URL waiting in (or already taken from) the frontier
+     */
+    public static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final String url;
+        public final int depth;
+        public final int parentSeq;     // frontier entry the URL was discovered from, -1 for the seed
+        public final int parentPageId;  // page ID of that entry in the index, -1 for the seed
+        public Status status = Status.PENDING;
+
+        public Entry(String url, int depth, int parentSeq, int parentPageId) {
+            this.url = url;
+            this.depth = depth;
+            this.parentSeq = parentSeq;
+            this.parentPageId = parentPageId;
+        }
+    }
+
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    private final RecordManager recman;
+    private final HTree entries;
+    private final HTree seenUrls;
+    private final HTree counterMap;
+    private final BloomFilter seenFilter;
+    private final int checkpointInterval;
+    private int uncommitted;
+
+    /**
+     * Open (or create) the frontier stored in dbName, committing every checkpointInterval completed entries.
+     * expectedUrls sizes the Bloom filter in front of the seen-set.
+     */
+    public CrawlFrontier(String dbName, int checkpointInterval, int expectedUrls) throws IOException {
+        this.checkpointInterval = checkpointInterval;
+        recman = RecordManagerFactory.createRecordManager(dbName);
+        entries = loadOrCreateHTree("frontier");
+        seenUrls = loadOrCreateHTree("seenUrls");
+        counterMap = loadOrCreateHTree("frontierCounter");
+        seenFilter = new BloomFilter(expectedUrls, BLOOM_FALSE_POSITIVE_RATE);
+
+        if (counterMap.get("head") == null) {
+            counterMap.put("head", 0);
+        }
+        if (counterMap.get("tail") == null) {
+            counterMap.put("tail", 0);
+        }
+        recman.commit();
+
+        // rebuild the filter from the exact set when resuming
+        FastIterator iter = seenUrls.keys();
+        Object key;
+        while ((key = iter.next()) != null) {
+            seenFilter.add((String) key);
+        }
+    }
+
+    private HTree loadOrCreateHTree(String name) throws IOException {
+        long recid = recman.getNamedObject(name);
+        if (recid != 0) {
+            return HTree.load(recman, recid);
+        } else {
+            HTree tree = HTree.createInstance(recman);
+            recman.setNamedObject(name, tree.getRecid());
+            return tree;
+        }
+    }
+
+    /**
+     * Sequence number of the first entry that has not been completed
+     */
+    public int head() throws IOException {
+        return (Integer) counterMap.get("head");
+    }
+
+    /**
+     * Number of entries scheduled so far
+     */
+    public int size() throws IOException {
+        return (Integer) counterMap.get("tail");
+    }
+
+    /**
+     * Number of completed entries between two commits, i.e. how many completions a crash can lose
+     */
+    public int checkpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * A crawl is finished when something was scheduled and every entry has been completed
+     */
+    public boolean isFinished() throws IOException {
+        int tail = size();
+        return tail > 0 && head() == tail;
+    }
+
+    /**
+     * Check whether a URL has ever been scheduled
+     */
+    public boolean contains(String url) throws IOException {
+        return seenFilter.mightContain(url) && seenUrls.get(url) != null;
+    }
+
+    /**
+     * Append a URL to the frontier and return its sequence number, or -1 if it was already scheduled
+     */
+    public int add(String url, int depth, int parentSeq, int parentPageId) throws IOException {
+        if (contains(url)) return -1;
+
+        int seq = size();
+        entries.put(seq, new Entry(url, depth, parentSeq, parentPageId));
+        seenUrls.put(url, seq);
+        seenFilter.add(url);
+        counterMap.put("tail", seq + 1);
+        return seq;
+    }
+
+    public Entry get(int seq) throws IOException {
+        return (Entry) entries.get(seq);
+    }
+
+    /**
+     * Mark an entry as done or failed and move the head past every completed entry.
+     * The change is durable after the next {@link #checkpoint()}.
+     */
+    public void complete(int seq, Status status) throws IOException {
+        Entry entry = get(seq);
+        if (entry == null) return;
+        entry.status = status;
+        entries.put(seq, entry);
+
+        int head = head();
+        int tail = size();
+        while (head < tail && get(head).status != Status.PENDING) {
+            head++;
+        }
+        counterMap.put("head", head);
+        uncommitted++;
+    }
+
+    /**
+     * True once checkpointInterval entries have been completed since the last checkpoint
+     */
+    public boolean checkpointDue() {
+        return uncommitted >= checkpointInterval;
+    }
+
+    /**
+     * Make everything recorded so far durable
+     */
+    public void checkpoint() throws IOException {
+        recman.commit();
+        uncommitted = 0;
+    }
+
+    /**
+     * Drop all entries so that a new crawl can start from a fresh seed
+     */
+    public void reset() throws IOException {
+        int tail = size();
+        for (int seq = 0; seq < tail; seq++) {
+            Entry entry = get(seq);
+            if (entry != null) {
+                seenUrls.remove(entry.url);
+                entries.remove(seq);
+            }
+        }
+        seenFilter.clear();
+        counterMap.put("head", 0);
+        counterMap.put("tail", 0);
+        checkpoint();
+    }
+
+    /**
+     * Close the frontier, dropping the changes since the last checkpoint (JDBM would
+     * otherwise commit them on close), so it never runs ahead of the flushed index
+     */
+    @Override
+    public void close() {
+        try {
+            recman.rollback();
+            recman.close();
+        } catch (IOException e) {
+            System.err.println("Error closing frontier: " + e.getMessage());
+        }
+    }
+}
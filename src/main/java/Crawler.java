@@ -0,0 +1,487 @@
+import org.jsoup.Connection;
+import org.jsoup.Jsoup;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.StreamParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Breadth-first web crawler built as a pipeline of stages:
+ *
+ *   fetch -> parse/extract -> analyze (stop/stem) -> index write
+ *
+ * Fetches run on virtual threads, up to maxConcurrency pages at once and at
+ * most maxPerHost from the same host. Parsing and stop/stem analysis run on a
+ * pool with one thread per core. The stages are joined by bounded queues, so
+ * a slow stage holds back the ones before it. All index and frontier writes
+ * happen on the thread that calls crawl(), the only thread that touches the
+ * (not thread-safe) JDBM record managers. Pages therefore reach the index
+ * roughly, but not strictly, in the order they were discovered.
+ *
+ * Each page costs a single HTTP request. Pages that are already indexed are
+ * fetched with If-Modified-Since / If-None-Match, so an unchanged page is
+ * answered with a 304 and no body; its stored child links are followed instead.
+ * Page bodies are cut off after maxDocumentBytes and parsed by
+ * {@link PageExtractor} without building a full Document.
+ *
+ * The queue of pages lives in a {@link CrawlFrontier} on disk, so only the
+ * pages in the pipeline are held in memory and an interrupted crawl resumes
+ * where its last checkpoint left off.
+ */
+public class Crawler {
+    private static final int FETCH_TIMEOUT_MS = 10000;
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final int DEFAULT_MAX_DOCUMENT_BYTES = 2 * 1024 * 1024;
+    private static final int STAGE_QUEUE_CAPACITY = 16;
+
+    private final InvertedIndexManager indexManager;
+    private final CrawlFrontier frontier;
+    private final int maxPages;
+    private final int maxConcurrency;
+    private final int maxPerHost;
+    private final int analysisThreads = Runtime.getRuntime().availableProcessors();
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private int maxDocumentBytes = DEFAULT_MAX_DOCUMENT_BYTES;
+
+    private final StageStats fetchStats = new StageStats("fetch");
+    private final StageStats parseStats = new StageStats("parse");
+    private final StageStats analyzeStats = new StageStats("analyze");
+    private final StageStats writeStats = new StageStats("write");
+    private long crawlStartNanos;
+
+    /**
+     * A page travelling through the pipeline. Each stage fills in its part;
+     * once a stage fails, the later stages pass the page on untouched.
+     */
+    private static class Work {
+        final int seq;
+        final CrawlFrontier.Entry entry;
+        final HtmlParser.Page page;
+        boolean modified = true;    // false if the server answered 304 Not Modified
+        byte[] body;
+        Charset charset;
+        String baseUri;
+        List<String> titleTerms;
+        List<String> bodyTerms;
+        Throwable error;        // anything a stage threw, so the page still reaches the writer
+
+        Work(int seq, CrawlFrontier.Entry entry, HtmlParser.Page page) {
+            this.seq = seq;
+            this.entry = entry;
+            this.page = page;
+        }
+
+        boolean skip() {
+            return error != null || !modified;
+        }
+    }
+
+    private interface StageTask {
+        void process(Work work) throws Exception;
+    }
+
+    public Crawler(InvertedIndexManager indexManager, CrawlFrontier frontier, int maxPages, int maxConcurrency, int maxPerHost) {
+        this.indexManager = indexManager;
+        this.frontier = frontier;
+        this.maxPages = maxPages;
+        this.maxConcurrency = maxConcurrency;
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Limit how much of each page is read; the rest of a larger page is ignored
+     */
+    public void setMaxDocumentBytes(int maxDocumentBytes) {
+        this.maxDocumentBytes = maxDocumentBytes;
+    }
+
+    /**
+     * Crawl from the seed URL until maxPages pages have been scheduled or the
+     * frontier is exhausted. An unfinished crawl found in the frontier is resumed
+     * instead. Returns the number of pages scheduled.
+     */
+    public int crawl(String seedUrl) throws IOException {
+        if (frontier.isFinished()) {
+            frontier.reset();
+        }
+        // pages completed after the last checkpoint (or still in the pipeline) may have been
+        // indexed without all of their links being recorded, so they are fetched again in full
+        int unconditionalFetches = 0;
+        if (frontier.size() == 0) {
+            String seed = UrlCanonicalizer.canonicalize(seedUrl);
+            if (seed == null) throw new IllegalArgumentException("Cannot crawl seed URL " + seedUrl);
+            frontier.add(seed, 0, -1, -1);
+            frontier.checkpoint();
+        } else {
+            System.out.println("Resuming crawl at page " + frontier.head() + " of " + frontier.size());
+            unconditionalFetches = frontier.checkpointInterval() + maxConcurrency;
+        }
+        int nextToSubmit = frontier.head();
+        int inPipeline = 0;
+        crawlStartNanos = System.nanoTime();
+
+        BlockingQueue<Work> parseQueue = new ArrayBlockingQueue<>(STAGE_QUEUE_CAPACITY);
+        BlockingQueue<Work> analyzeQueue = new ArrayBlockingQueue<>(STAGE_QUEUE_CAPACITY);
+        BlockingQueue<Work> writeQueue = new ArrayBlockingQueue<>(STAGE_QUEUE_CAPACITY);
+
+        ExecutorService fetchers = Executors.newVirtualThreadPerTaskExecutor();
+        ExecutorService workers = Executors.newFixedThreadPool(2 * analysisThreads);
+        try {
+            startStage(workers, parseQueue, analyzeQueue, parseStats, this::parse);
+            startStage(workers, analyzeQueue, writeQueue, analyzeStats, this::analyze);
+
+            while (nextToSubmit < frontier.size() || inPipeline > 0) {
+                // keep the fetch window full
+                while (inPipeline < maxConcurrency && nextToSubmit < frontier.size()) {
+                    int seq = nextToSubmit++;
+                    CrawlFrontier.Entry entry = frontier.get(seq);
+                    if (entry.status != CrawlFrontier.Status.PENDING) continue;
+
+                    HtmlParser.Page page = new HtmlParser.Page(entry.url, seq);
+                    if (unconditionalFetches > 0) {
+                        unconditionalFetches--;
+                    } else {
+                        try {
+                            loadValidators(page);
+                        } catch (IOException e) {
+                            System.err.println("Error reading stored page " + page.url + ": " + e.getMessage());
+                        }
+                    }
+                    Work work = new Work(seq, entry, page);
+                    fetchers.submit(() -> fetchStage(work, parseQueue));
+                    inPipeline++;
+                }
+                if (inPipeline == 0) continue;
+
+                Work work = writeQueue.take();
+                inPipeline--;
+                long start = System.nanoTime();
+                frontier.complete(work.seq, write(work));
+                if (frontier.checkpointDue()) {
+                    checkpoint();
+                }
+                writeStats.record(start);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Crawl interrupted");
+        } finally {
+            fetchers.shutdownNow();
+            workers.shutdownNow();
+            checkpoint();
+            System.out.print(stageReport());
+        }
+        return frontier.size();
+    }
+
+    /**
+     * Flush the indexed pages to a segment before committing the frontier, so no page
+     * is recorded as done while its postings exist only in memory
+     */
+    private void checkpoint() throws IOException {
+        indexManager.flush();
+        frontier.checkpoint();
+    }
+
+    /**
+     * Throughput of each pipeline stage since the crawl started
+     */
+    public String stageReport() {
+        long elapsed = System.nanoTime() - crawlStartNanos;
+        StringBuilder sb = new StringBuilder("Pipeline stages:\n");
+        for (StageStats stats : List.of(fetchStats, parseStats, analyzeStats, writeStats)) {
+            sb.append("  ").append(stats.report(elapsed)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Start one worker per core that moves pages from one queue to the next through a stage
+     */
+    private void startStage(ExecutorService pool, BlockingQueue<Work> in, BlockingQueue<Work> out,
+                            StageStats stats, StageTask task) {
+        for (int i = 0; i < analysisThreads; i++) {
+            pool.submit(() -> {
+                try {
+                    while (true) {
+                        Work work = in.take();
+                        if (!work.skip()) {
+                            long start = System.nanoTime();
+                            try {
+                                task.process(work);
+                            } catch (Throwable e) {
+                                // an Error too, e.g. StackOverflowError on deeply nested HTML:
+                                // a page lost here would leave the crawl waiting for it forever
+                                work.error = e;
+                            }
+                            stats.record(start);
+                        }
+                        out.put(work);
+                    }
+                } catch (InterruptedException e) {
+                    // pipeline shut down
+                }
+            });
+        }
+    }
+
+    private void fetchStage(Work work, BlockingQueue<Work> out) {
+        long start = System.nanoTime();
+        try {
+            fetch(work);
+        } catch (Throwable e) {
+            work.error = e;
+        }
+        fetchStats.record(start);
+        try {
+            out.put(work);
+        } catch (InterruptedException e) {
+            // pipeline shut down
+        }
+    }
+
+    private void parse(Work work) throws IOException {
+        try (StreamParser parser = new StreamParser(Parser.htmlParser())
+                .parse(new InputStreamReader(new ByteArrayInputStream(work.body), work.charset), work.baseUri)) {
+            PageExtractor.extract(parser, work.page);
+        }
+        work.body = null;
+    }
+
+    private void analyze(Work work) {
+        work.titleTerms = HtmlParser.stopAndStem(work.page.titleWords);
+        work.bodyTerms = HtmlParser.stopAndStem(work.page.bodyWords);
+        work.page.titleWords = null;
+        work.page.bodyWords = null;
+    }
+
+    /**
+     * Index a page that came out of the pipeline and schedule its links. Runs on the crawl thread only.
+     */
+    private CrawlFrontier.Status write(Work work) {
+        HtmlParser.Page page = work.page;
+        if (work.error != null) {
+            System.err.println("Error crawling page " + page.url + ": "
+                    + (work.error instanceof Error ? work.error : work.error.getMessage()));
+            return CrawlFrontier.Status.FAILED;
+        }
+        try {
+            System.out.println("Crawling page: " + page.url);
+            if (!work.modified) {
+                System.out.println("Page not modified: " + page.url);
+                followStoredLinks(work.seq, work.entry);
+            } else {
+                int dbPageId = HtmlParser.indexPage(indexManager, page, work.titleTerms, work.bodyTerms);
+
+                // links inside a page (child page)
+                for (String link : page.links) {
+                    scheduleChild(work.seq, work.entry, dbPageId, link);
+                }
+            }
+            return CrawlFrontier.Status.DONE;
+        } catch (Exception e) {
+            System.err.println("Error indexing page " + page.url + ": " + e.getMessage());
+            return CrawlFrontier.Status.FAILED;
+        }
+    }
+
+    /**
+     * Record a link from the page and schedule its target if it has not been seen before
+     */
+    private void scheduleChild(int parentSeq, CrawlFrontier.Entry parent, int dbPageId, String href) throws IOException {
+        String url = UrlCanonicalizer.canonicalize(href);
+        if (url == null) return;
+
+        if (frontier.contains(url)) {
+            Integer childPageId = indexManager.getPageIdIfExists(url);
+            if (childPageId != null) {
+                indexManager.addChildPage(dbPageId, childPageId);
+            }
+            return;
+        }
+        if (frontier.size() >= maxPages) return;
+
+        frontier.add(url, parent.depth + 1, parentSeq, dbPageId);
+
+        int childPageId = indexManager.addPage(url, "", 0, 0);
+        indexManager.addChildPage(dbPageId, childPageId);
+    }
+
+    /**
+     * An unchanged page has no body to extract links from, so follow the links stored when it was indexed
+     */
+    private void followStoredLinks(int seq, CrawlFrontier.Entry entry) throws IOException {
+        Integer dbPageId = indexManager.getPageIdIfExists(entry.url);
+        InvertedIndexManager.PageInfo info = dbPageId == null ? null : indexManager.getPageInfo(dbPageId);
+        if (info == null) return;
+        for (Integer childId : info.childPageIds) {
+            InvertedIndexManager.PageInfo childInfo = indexManager.getPageInfo(childId);
+            if (childInfo != null) {
+                scheduleChild(seq, entry, dbPageId, childInfo.url);
+            }
+        }
+    }
+
+    /**
+     * Copy the validators of an already indexed page so the fetch can be made conditional
+     */
+    private void loadValidators(HtmlParser.Page page) throws IOException {
+        if (!indexManager.hasKeyword(page.url)) return;
+        InvertedIndexManager.PageInfo info = indexManager.getPageInfo(indexManager.getPageIdIfExists(page.url));
+        if (info != null) {
+            page.knownLastModifiedDate = info.lastModifiedDate;
+            page.knownEtag = info.etag;
+        }
+    }
+
+    /**
+     * Fetch a page body, holding one of its host's permits for the duration of the request.
+     * Leaves work.modified false if the stored copy is still current.
+     */
+    private void fetch(Work work) throws Exception {
+        HtmlParser.Page page = work.page;
+        Semaphore permits = hostPermits.computeIfAbsent(hostOf(page.url), h -> new Semaphore(maxPerHost));
+        permits.acquire();
+        try {
+            Connection connection = Jsoup.connect(page.url)
+                    .timeout(FETCH_TIMEOUT_MS)
+                    .maxBodySize(maxDocumentBytes);
+            if (page.knownLastModifiedDate > 0) {
+                connection.header("If-Modified-Since", formatHttpDate(page.knownLastModifiedDate));
+            }
+            if (page.knownEtag != null) {
+                connection.header("If-None-Match", page.knownEtag);
+            }
+
+            Connection.Response res = connection.execute();
+            if (res.statusCode() == HTTP_NOT_MODIFIED) {
+                work.modified = false;
+                return;
+            }
+            page.lastModifiedDate = parseHttpDate(res.header("Last-Modified"));
+            page.etag = res.header("ETag");
+            page.sizeOfPage = contentLength(res);
+            try (BoundedInputStream body = new BoundedInputStream(res.bodyStream(), maxDocumentBytes)) {
+                work.body = body.readAllBytes();
+            }
+            if (page.sizeOfPage < 0) {
+                page.sizeOfPage = work.body.length;
+            }
+            work.charset = charsetOf(res);
+            work.baseUri = res.url().toExternalForm();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static long contentLength(Connection.Response res) {
+        String length = res.header("Content-Length");
+        if (length != null) {
+            try {
+                return Long.parseLong(length.trim());
+            } catch (NumberFormatException ignored) {
+                // treat as unknown
+            }
+        }
+        return -1;
+    }
+
+    private static Charset charsetOf(Connection.Response res) {
+        try {
+            return res.charset() != null ? Charset.forName(res.charset()) : StandardCharsets.UTF_8;
+        } catch (IllegalArgumentException e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    private static String formatHttpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    private static long parseHttpDate(String value) {
+        if (value == null) return 0;
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    private static String hostOf(String url) {
+        try {
+            String host = URI.create(url).getHost();
+            return host == null ? "" : host.toLowerCase();
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Reports end of stream once the limit number of bytes has been read
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private final long limit;
+        private long bytesRead;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (bytesRead >= limit) return -1;
+            int b = super.read();
+            if (b >= 0) bytesRead++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (bytesRead >= limit) return -1;
+            int n = super.read(buf, off, (int) Math.min(len, limit - bytesRead));
+            if (n > 0) bytesRead += n;
+            return n;
+        }
+    }
+
+    /**
+     * Number of pages a stage has processed and the time it spent on them
+     */
+    private static class StageStats {
+        private final String name;
+        private final AtomicLong pages = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+
+        StageStats(String name) {
+            this.name = name;
+        }
+
+        void record(long startNanos) {
+            pages.incrementAndGet();
+            busyNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+
+        String report(long elapsedNanos) {
+            long n = pages.get();
+            double seconds = Math.max(elapsedNanos, 1) / 1e9;
+            double msPerPage = n == 0 ? 0 : busyNanos.get() / 1e6 / n;
+            return String.format("%-8s %7d pages %9.1f pages/s %9.2f ms/page", name, n, n / seconds, msPerPage);
+        }
+    }
+}
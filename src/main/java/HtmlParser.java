@@ -1,12 +1,7 @@
 import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Date;
@@ -17,167 +12,75 @@ public class HtmlParser {
 
     public static StopStem stopStem = new StopStem("stopwords.txt");
     private static final String OUTPUT_FILE = "spider_result.txt";
+    private static final String SNAPSHOT_FILE = "spider_index.snapshot";
     private static final int MAX_KEYWORDS_TO_DISPLAY = 10;
     private static final int MAX_LINKS_TO_DISPLAY = 10;
-    private static final int MAX_NGRAM = 3;
+    private static final int MAX_CONCURRENT_FETCHES = 32;
+    private static final int MAX_FETCHES_PER_HOST = 4;
+    private static final int FRONTIER_CHECKPOINT_INTERVAL = 20;
+    private static final int MAX_DOCUMENT_BYTES = 2 * 1024 * 1024;
+    private static final long INDEX_RAM_BUFFER_BYTES = 16 * 1024 * 1024;
 
-    public static class Page {
+    /**
+     * A page being crawled: the result of one fetch, filled in by {@link PageExtractor} as the page is parsed
+     */
+    public static class Page implements PageExtractor.Handler {
         public int pageID;
         public String url;
-        public String title;
+        public String title = "";
         public long lastModifiedDate;
         public long sizeOfPage;
-        public Page parentPage;
-        public List<Page> childPage = new ArrayList<>();
-        public int numOfChildPages;
-        public Dictionary<String, Dictionary<Integer, Integer>> titleStem = new Hashtable<>();
-        public Dictionary<String, Dictionary<Integer, Integer>> bodyStem = new Hashtable<>();
+        public String etag;
+        public List<String> titleWords = new ArrayList<>();
+        public List<String> bodyWords = new ArrayList<>();
+        public List<String> links = new ArrayList<>();
+        
+        // validators of the stored copy, sent as If-Modified-Since / If-None-Match on re-crawl
+        public long knownLastModifiedDate;
+        public String knownEtag;
         
         public Page(String url, int pageID) {
             this.url = url;
             this.pageID = pageID;
-            try{
-                URL url_date = new URL(url);
-                URLConnection connection = url_date.openConnection();
-                this.lastModifiedDate = connection.getLastModified();
-                this.sizeOfPage = connection.getContentLengthLong();
-            } catch (MalformedURLException e) {
-                throw new RuntimeException(e);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        public void addChildPage(Page childPage){
-            this.childPage.add(childPage);
-            numOfChildPages=numOfChildPages+1;
         }
-    }
-
-    public static void spider(InvertedIndexManager indexManager, Page page, int doc_max, int[] doc_num, int[] track, List<Page> db){
-        try{
-            System.out.println("Crawling page: " + page.url);
-            Document doc = Jsoup.connect(page.url)
-                    .timeout(10000)
-                    .get();
-            
-            page.title = doc.title();
-            
-            int dbPageId = indexManager.addPage(page.url, page.title, page.lastModifiedDate, page.sizeOfPage);
-            System.out.println("Added page to DB with ID: " + dbPageId + ", Title: " + page.title);
-
-            boolean pageHasUpdate = indexManager.hasUpdate(page.url);
-
-            if (!indexManager.hasKeyword(page.url) || pageHasUpdate){ // !page.extractedKeywords || pageHasUpdate
-                StringTokenizer st = new StringTokenizer(doc.body().text(), " ");
-                Map<String, Integer> bodyWordFreq = new HashMap<>();
-                List<String> bodyTokens = new ArrayList<>();
-
-                while (st.hasMoreTokens()) {
-                    String nextToken = st.nextToken().toLowerCase();
-                    if (!stopStem.isStopWord(nextToken)){
-                        String token_word = stopStem.stem(nextToken);
-
-                        if (token_word.equals("")){
-                            continue;
-                        }
-
-                        bodyTokens.add(token_word);
-                        if (page.bodyStem.get(token_word) != null){
-                            page.bodyStem.get(token_word).put(page.pageID, page.bodyStem.get(token_word).get(page.pageID)+1);
-                        } else {
-                            Hashtable<Integer, Integer> tmpDict = new Hashtable<>();
-                            tmpDict.put(page.pageID, 1);
-                            page.bodyStem.put(token_word, tmpDict);
-                        }
-
-                        bodyWordFreq.put(token_word, bodyWordFreq.getOrDefault(token_word, 0) + 1);
-                    }
-                }
-
-                for (Map.Entry<String, Integer> entry : bodyWordFreq.entrySet()) {
-                    indexManager.addWordToBody(dbPageId, entry.getKey(), entry.getValue());
-                }
-                for (int n = 2; n <= MAX_NGRAM; n++) {
-                    for (int i = 0; i + n <= bodyTokens.size(); i++) {
-                        String ngram = String.join(" ", bodyTokens.subList(i, i + n));
-                        indexManager.addWordToBody(dbPageId, ngram, 1);
-                    }
-                }
-                System.out.println("Added " + bodyWordFreq.size() + " body keywords and n-grams for page ID: " + dbPageId);
-
-                st = new StringTokenizer(doc.head().text(), " ");
-                Map<String, Integer> titleWordFreq = new HashMap<>();
-                List<String> titleTokens = new ArrayList<>();
 
-                while (st.hasMoreTokens()) {
-                    String nextToken = st.nextToken().toLowerCase();
-                    if (!stopStem.isStopWord(nextToken)){
-                        String token_word = stopStem.stem(nextToken);
-
-                        if (page.titleStem.get(token_word) != null){
-                            page.titleStem.get(token_word).put(page.pageID, page.titleStem.get(token_word).get(page.pageID)+1);
-                        } else {
-                            Hashtable<Integer, Integer> tmpDict = new Hashtable<>();
-                            tmpDict.put(page.pageID, 1);
-                            page.titleStem.put(token_word, tmpDict);
-                        }
-
-                        titleWordFreq.put(token_word, titleWordFreq.getOrDefault(token_word, 0) + 1);
-                        titleTokens.add(token_word);
-                    }
-                }
-
-                for (Map.Entry<String, Integer> entry : titleWordFreq.entrySet()) {
-                    indexManager.addWordToTitle(dbPageId, entry.getKey(), entry.getValue());
-                }
-                for (int n = 2; n <= MAX_NGRAM; n++) {
-                    for (int i = 0; i + n <= titleTokens.size(); i++) {
-                        String ngram = String.join(" ", titleTokens.subList(i, i + n));
-                        indexManager.addWordToTitle(dbPageId, ngram, 1);
-                    }
-                }
-                indexManager.sortForMaxTFForPageId(dbPageId); // new
-            }
-            // retrieve links inside a page (child page)
-            Elements links = doc.select("a");
-            for (Element link:links){
-                String absHref = link.attr("abs:href");
+        @Override public void title(String title)       { this.title = title; }
+        @Override public void titleToken(String token)  { titleWords.add(token); }
+        @Override public void bodyToken(String token)   { bodyWords.add(token); }
+        @Override public void link(String absUrl)       { links.add(absUrl); }
+    }
 
-                if (absHref.isEmpty()) continue;
+    /**
+     * Indexes the analyzed title and body terms of a fetched page and returns its page ID in the database
+     */
+    public static int indexPage(InvertedIndexManager indexManager, Page page, List<String> titleTerms, List<String> bodyTerms) throws IOException {
+        boolean pageHasUpdate = indexManager.hasUpdate(page.url, page.lastModifiedDate, page.etag);
 
-                boolean isParent = false;
-                Page parent = page.parentPage;
-                while (parent != null){
-                    if (parent.url.equals(absHref)){
-                        isParent = true;
-                        break;
-                    }
-                    parent = parent.parentPage;
-                }
+        int dbPageId = indexManager.addPage(page.url, page.title, page.lastModifiedDate, page.sizeOfPage, page.etag);
+        System.out.println("Added page to DB with ID: " + dbPageId + ", Title: " + page.title);
 
-                if (!isParent && doc_num[0] < doc_max){
-                    Page childPage = new Page(absHref, ++doc_num[0]);
-                    childPage.parentPage = page;
-                    page.addChildPage(childPage);
-                    db.add(childPage);
+        if (!indexManager.hasKeyword(page.url) || pageHasUpdate){ // !page.extractedKeywords || pageHasUpdate
+            indexManager.indexDocument(dbPageId, titleTerms, bodyTerms);
+            System.out.println("Indexed " + bodyTerms.size() + " body words and " + titleTerms.size() + " title words for page ID: " + dbPageId);
+        }
+        return dbPageId;
+    }
 
-                    int childPageId = indexManager.addPage(absHref, "", childPage.lastModifiedDate, childPage.sizeOfPage);
-                    indexManager.addChildPage(dbPageId, childPageId);
-                }
-            }
-            
-            ++track[0];
-            while (track[0] < doc_num[0]){ // track can prevent document skipping if read timeout occurs
-                try {
-                    spider(indexManager, db.get(track[0]), doc_max, doc_num, track, db);
-                } catch (Exception e) {
-                    System.err.println("Error crawling page " + db.get(track[0]).url + ": " + e.getMessage());
-                    ++track[0];
+    /**
+     * Lower-cases the words, drops stop words and stems the rest, keeping their order
+     */
+    public static List<String> stopAndStem(List<String> words) {
+        List<String> tokens = new ArrayList<>(words.size());
+        for (String word : words) {
+            String nextToken = word.toLowerCase();
+            if (!stopStem.isStopWord(nextToken)){
+                String token_word = stopStem.stem(nextToken);
+                if (!token_word.isEmpty()){
+                    tokens.add(token_word);
                 }
             }
-        } catch (Exception e){
-            e.printStackTrace();
         }
+        return tokens;
     }
 
     public static void main(String[] args) {
@@ -199,19 +102,20 @@ public class HtmlParser {
 //            finalUrl = backupUrl;
 //        }
         
-        try (InvertedIndexManager indexManager = new InvertedIndexManager("spider_index")) {
+        int doc_max = 300;
+        try (InvertedIndexManager indexManager = new InvertedIndexManager("spider_index");
+             CrawlFrontier frontier = new CrawlFrontier("spider_index_frontier", FRONTIER_CHECKPOINT_INTERVAL, doc_max)) {
             
-            List<Page> db = new ArrayList<>();
-            Page firstPage = new Page(finalUrl, 0);
-            db.add(firstPage);
-            int doc_max = 300;
-            int[] doc_num = new int[1]; // counting the no. of documents fetched
-            int[] track = new int[1]; // tracking which document to perform BFS
-            ++doc_num[0];
+            indexManager.setRamBufferBytes(INDEX_RAM_BUFFER_BYTES);
+            Crawler crawler = new Crawler(indexManager, frontier, doc_max, MAX_CONCURRENT_FETCHES, MAX_FETCHES_PER_HOST);
+            crawler.setMaxDocumentBytes(MAX_DOCUMENT_BYTES);
             
             System.out.println("Starting web crawling...");
-            spider(indexManager, db.getFirst(), doc_max, doc_num, track, db);
-            System.out.println("Finished web crawling. Total pages indexed: " + doc_num[0]);
+            int doc_num = crawler.crawl(finalUrl);
+            System.out.println("Finished web crawling. Total pages indexed: " + doc_num);
+            
+            IndexSnapshot.export(indexManager, new File(SNAPSHOT_FILE));
+            System.out.println("Index snapshot written to " + SNAPSHOT_FILE);
             
 //            generateResultFile(indexManager);
 //
@@ -0,0 +1,274 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An immutable segment of the inverted index, stored in its own file.
+ *
+ * A segment holds the postings of a fixed set of pages for every word they contain,
+ * sorted by word ID. Each word has four posting lists (see {@link PostingList}):
+ * body and title frequencies, and body and title positions.
+ *
+ *   segment := term* pages termIndex footer
+ *   term    := length[4] bytes[4]           (one length and list per field, empty if length is 0)
+ *   pages   := count pageId*
+ *   termIndex := count (wordId offset)*
+ *   footer  := pagesOffset termIndexOffset magic
+ *
+ * Segments are written once by a {@link Writer} and never changed; pages that are
+ * re-indexed later are marked deleted in the segment's {@link Info} instead.
+ * The term index and page list are loaded when a segment is opened, postings are
+ * read from the file as they are needed.
+ */
+public final class IndexSegment implements AutoCloseable {
+    public static final int BODY = 0;
+    public static final int TITLE = 1;
+    public static final int BODY_POSITIONS = 2;
+    public static final int TITLE_POSITIONS = 3;
+    public static final int FIELDS = 4;
+
+    private static final int MAGIC = 0x53454731;    // "SEG1"
+    private static final int TERM_HEADER_BYTES = 4 * FIELDS;
+    private static final int FOOTER_BYTES = 8 + 8 + 4;
+
+    /**
+     * Description of a segment kept in the index database. Everything but the
+     * deleted pages is fixed when the segment is written.
+     */
+    public static class Info implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final int id;
+        public final String fileName;
+        public final int pageCount;
+        public final BitSet deleted = new BitSet();
+
+        public Info(int id, String fileName, int pageCount) {
+            this.id = id;
+            this.fileName = fileName;
+            this.pageCount = pageCount;
+        }
+
+        public int liveCount() {
+            return pageCount - deleted.cardinality();
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final int[] wordIds;
+    private final long[] offsets;
+    private final int[] pageIds;
+
+    private IndexSegment(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        ByteBuffer footer = read(channel.size() - FOOTER_BYTES, FOOTER_BYTES);
+        long pagesOffset = footer.getLong();
+        long termIndexOffset = footer.getLong();
+        if (footer.getInt() != MAGIC) {
+            channel.close();
+            throw new IOException("Not an index segment: " + file);
+        }
+
+        ByteBuffer pages = read(pagesOffset, (int) (termIndexOffset - pagesOffset));
+        pageIds = new int[pages.getInt()];
+        pages.asIntBuffer().get(pageIds);
+
+        ByteBuffer terms = read(termIndexOffset, (int) (channel.size() - FOOTER_BYTES - termIndexOffset));
+        int termCount = terms.getInt();
+        wordIds = new int[termCount];
+        offsets = new long[termCount];
+        for (int i = 0; i < termCount; i++) {
+            wordIds[i] = terms.getInt();
+            offsets[i] = terms.getLong();
+        }
+    }
+
+    public static IndexSegment open(File file) throws IOException {
+        return new IndexSegment(file);
+    }
+
+    public File file() {
+        return file;
+    }
+
+    /**
+     * Word IDs that have postings in this segment, in increasing order
+     */
+    public int[] wordIds() {
+        return wordIds;
+    }
+
+    /**
+     * Pages indexed in this segment, in increasing order
+     */
+    public int[] pageIds() {
+        return pageIds;
+    }
+
+    /**
+     * Posting list of a word in one of the fields, empty if the segment has none
+     */
+    public PostingList postings(int wordId, int field) throws IOException {
+        int i = Arrays.binarySearch(wordIds, wordId);
+        if (i < 0) {
+            return emptyList(field);
+        }
+        ByteBuffer header = read(offsets[i], TERM_HEADER_BYTES);
+        long offset = offsets[i] + TERM_HEADER_BYTES;
+        for (int f = 0; f < field; f++) {
+            offset += header.getInt(4 * f);
+        }
+        int length = header.getInt(4 * field);
+        if (length == 0) {
+            return emptyList(field);
+        }
+        return PostingList.decode(read(offset, length).array());
+    }
+
+    static PostingList emptyList(int field) {
+        return field >= BODY_POSITIONS ? PostingList.EMPTY_POSITIONAL : PostingList.EMPTY;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated index segment: " + file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Counts the bytes written through it. Unlike DataOutputStream.size(), which stops at
+     * Integer.MAX_VALUE, the count stays right past 2 GB.
+     */
+    static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long count() {
+            return count;
+        }
+    }
+
+    /**
+     * Writes a new segment. Words must be added in increasing word ID order. The file is
+     * written under a temporary name and only appears under its final name once complete.
+     */
+    public static final class Writer implements AutoCloseable {
+        private final File file;
+        private final File tmpFile;
+        private final FileOutputStream fileOut;
+        private final CountingOutputStream counter;
+        private final DataOutputStream out;
+        private int[] wordIds = new int[64];
+        private long[] offsets = new long[64];
+        private int termCount;
+        private boolean finished;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            this.tmpFile = new File(file.getPath() + ".tmp");
+            fileOut = new FileOutputStream(tmpFile);
+            counter = new CountingOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            out = new DataOutputStream(counter);
+        }
+
+        /**
+         * Add the four posting lists of a word; words without any posting are skipped
+         */
+        public void addTerm(int wordId, PostingList[] lists) throws IOException {
+            boolean empty = true;
+            for (PostingList list : lists) {
+                if (!list.isEmpty()) empty = false;
+            }
+            if (empty) return;
+            if (termCount > 0 && wordId <= wordIds[termCount - 1]) {
+                throw new IllegalArgumentException("Word " + wordId + " added after word " + wordIds[termCount - 1]);
+            }
+
+            if (termCount == wordIds.length) {
+                wordIds = Arrays.copyOf(wordIds, termCount * 2);
+                offsets = Arrays.copyOf(offsets, termCount * 2);
+            }
+            wordIds[termCount] = wordId;
+            offsets[termCount] = counter.count();
+            termCount++;
+
+            for (PostingList list : lists) {
+                out.writeInt(list.isEmpty() ? 0 : list.bytes().length);
+            }
+            for (PostingList list : lists) {
+                if (!list.isEmpty()) out.write(list.bytes());
+            }
+        }
+
+        /**
+         * Write the page list and term index, sync the file to disk and give it its final name
+         */
+        public IndexSegment finish(int[] pageIds) throws IOException {
+            long pagesOffset = counter.count();
+            out.writeInt(pageIds.length);
+            for (int pageId : pageIds) {
+                out.writeInt(pageId);
+            }
+            long termIndexOffset = counter.count();
+            out.writeInt(termCount);
+            for (int i = 0; i < termCount; i++) {
+                out.writeInt(wordIds[i]);
+                out.writeLong(offsets[i]);
+            }
+            out.writeLong(pagesOffset);
+            out.writeLong(termIndexOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getChannel().force(true);
+            out.close();
+            finished = true;
+
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile + " to " + file);
+            }
+            return open(file);
+        }
+
+        /**
+         * Give up a segment that was not finished
+         */
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                out.close();
+                tmpFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,456 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Read-only copy of the index in a single memory-mapped file, for serving queries.
+ *
+ * Opening a snapshot only maps the file; term lookups binary search the mapped
+ * term dictionary and posting lists are decoded straight from the mapping, so
+ * there is no per-query deserialization and the OS page cache is shared by every
+ * process serving the same snapshot. The crawler exports a new snapshot after
+ * each crawl (see {@link #export}); a snapshot does not change once written.
+ * Reads only use absolute positions or private duplicates of the mapping, so one
+ * snapshot can serve any number of threads without locking.
+ *
+ *   snapshot  := postings wordPool termIndex wordIdIndex docs docIndex stats footer
+ *   postings  := (length[4] bytes[4])*       one group per word, as in {@link IndexSegment}
+ *   termIndex := (wordOffset wordLength wordId postingsOffset)*   sorted by the UTF-8 bytes of the word
+ *   wordIdIndex := (wordId postingsOffset)*   sorted by word ID
+ *   docs      := (maxTF lastModified size url title etag childIds parentIds topKeywords)*
+ *   docIndex  := (pageId docOffset)*         sorted by page ID
+ *   stats     := the collection statistics record, see {@link CollectionStats}
+ *   footer    := section offsets and counts, generation of the exported index, magic
+ */
+public final class IndexSnapshot implements SearchIndex {
+    private static final int MAGIC = 0x534E5034;    // "SNP4"
+    private static final int TERM_ENTRY_BYTES = 4 + 4 + 4 + 4;
+    private static final int WORD_ID_ENTRY_BYTES = 4 + 4;
+    private static final int DOC_ENTRY_BYTES = 4 + 4;
+    private static final int FOOTER_BYTES = 6 * 4 + 3 * 4 + 8 + 4;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int wordPoolOffset;
+    private final int termIndexOffset;
+    private final int wordIdIndexOffset;
+    private final int docIndexOffset;
+    private final int termCount;
+    private final int pageCount;
+    private final CollectionStats stats;
+    private final long generation;
+
+    private IndexSnapshot(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        if (channel.size() > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("Index snapshot too large to map: " + file);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        int footer = buffer.limit() - FOOTER_BYTES;
+        if (footer < 0 || buffer.getInt(buffer.limit() - 4) != MAGIC) {
+            channel.close();
+            throw new IOException("Not an index snapshot (or exported by an older version): " + file);
+        }
+        wordPoolOffset = buffer.getInt(footer);
+        termIndexOffset = buffer.getInt(footer + 4);
+        wordIdIndexOffset = buffer.getInt(footer + 8);
+        docIndexOffset = buffer.getInt(footer + 16);
+        termCount = buffer.getInt(footer + 24);
+        pageCount = buffer.getInt(footer + 32);
+        generation = buffer.getLong(footer + 36);
+
+        int statsOffset = buffer.getInt(footer + 20);
+        byte[] statsBytes = new byte[footer - statsOffset];
+        buffer.get(statsOffset, statsBytes);
+        stats = CollectionStats.fromBytes(statsBytes);
+    }
+
+    /**
+     * Map an exported snapshot
+     */
+    public static IndexSnapshot open(File file) throws IOException {
+        return new IndexSnapshot(file);
+    }
+
+    @Override
+    public Integer getWordIdIfExists(String word) {
+        int entry = findTerm(word.getBytes(StandardCharsets.UTF_8));
+        return entry < 0 ? null : buffer.getInt(entry + 8);
+    }
+
+    /**
+     * Helper method to binary search the term dictionary; returns the offset of the entry or -1
+     */
+    private int findTerm(byte[] word) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = termIndexOffset + mid * TERM_ENTRY_BYTES;
+            int cmp = compareWord(buffer.getInt(entry), buffer.getInt(entry + 4), word);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private int compareWord(int offset, int length, byte[] word) {
+        int n = Math.min(length, word.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(buffer.get(wordPoolOffset + offset + i) & 0xFF, word[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(length, word.length);
+    }
+
+    @Override
+    public PostingList getBodyPostings(int wordId) {
+        return postings(wordId, IndexSegment.BODY);
+    }
+
+    @Override
+    public PostingList getTitlePostings(int wordId) {
+        return postings(wordId, IndexSegment.TITLE);
+    }
+
+    @Override
+    public PostingList getBodyPositions(int wordId) {
+        return postings(wordId, IndexSegment.BODY_POSITIONS);
+    }
+
+    @Override
+    public PostingList getTitlePositions(int wordId) {
+        return postings(wordId, IndexSegment.TITLE_POSITIONS);
+    }
+
+    private PostingList postings(int wordId, int field) {
+        int entry = binarySearch(wordIdIndexOffset, WORD_ID_ENTRY_BYTES, termCount, wordId);
+        if (entry < 0) {
+            return IndexSegment.emptyList(field);
+        }
+        int offset = buffer.getInt(entry + 4);
+        int listOffset = offset + 4 * IndexSegment.FIELDS;
+        for (int f = 0; f < field; f++) {
+            listOffset += buffer.getInt(offset + 4 * f);
+        }
+        int length = buffer.getInt(offset + 4 * field);
+        if (length == 0) {
+            return IndexSegment.emptyList(field);
+        }
+        return PostingList.decode(buffer.slice(listOffset, length));
+    }
+
+    /**
+     * Helper method to binary search a section of (int key, int value) entries; returns the offset of the entry or -1
+     */
+    private int binarySearch(int sectionOffset, int entryBytes, int count, int key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = sectionOffset + mid * entryBytes;
+            int midKey = buffer.getInt(entry);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public List<Integer> getAllPageIds() {
+        List<Integer> pageIds = new ArrayList<>(pageCount);
+        for (int i = 0; i < pageCount; i++) {
+            pageIds.add(buffer.getInt(docIndexOffset + i * DOC_ENTRY_BYTES));
+        }
+        return pageIds;
+    }
+
+    @Override
+    public int getMaxTFForPageId(int pageId) {
+        int entry = binarySearch(docIndexOffset, DOC_ENTRY_BYTES, pageCount, pageId);
+        return entry < 0 ? 1 : buffer.getInt(buffer.getInt(entry + 4));
+    }
+
+    @Override
+    public CollectionStats getCollectionStats() {
+        return stats;
+    }
+
+    /**
+     * Generation of the index when the snapshot was exported
+     */
+    @Override
+    public long getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public InvertedIndexManager.PageInfo getPageInfo(int pageId) {
+        int entry = binarySearch(docIndexOffset, DOC_ENTRY_BYTES, pageCount, pageId);
+        if (entry < 0) {
+            return null;
+        }
+        ByteBuffer doc = buffer.duplicate().position(buffer.getInt(entry + 4));
+        doc.getInt();   // max tf
+        long lastModifiedDate = doc.getLong();
+        long size = doc.getLong();
+        String url = readString(doc);
+        String title = readString(doc);
+
+        InvertedIndexManager.PageInfo info = new InvertedIndexManager.PageInfo(url, title, lastModifiedDate, size);
+        info.etag = readString(doc);
+        int childCount = doc.getInt();
+        for (int i = 0; i < childCount; i++) {
+            info.childPageIds.add(doc.getInt());
+        }
+        return info;
+    }
+
+    @Override
+    public String getPageUrl(int pageId) {
+        int entry = binarySearch(docIndexOffset, DOC_ENTRY_BYTES, pageCount, pageId);
+        if (entry < 0) {
+            return null;
+        }
+        return readString(buffer.duplicate().position(buffer.getInt(entry + 4) + 4 + 8 + 8));
+    }
+
+    @Override
+    public List<Integer> getParentPageIds(int pageId, int limit) {
+        int entry = binarySearch(docIndexOffset, DOC_ENTRY_BYTES, pageCount, pageId);
+        if (entry < 0) {
+            return Collections.emptyList();
+        }
+        ByteBuffer doc = links(entry);
+        int childCount = doc.getInt();
+        doc.position(doc.position() + 4 * childCount);
+        
+        int parentCount = Math.min(doc.getInt(), limit);
+        List<Integer> parents = new ArrayList<>(parentCount);
+        for (int i = 0; i < parentCount; i++) {
+            parents.add(doc.getInt());
+        }
+        return parents;
+    }
+
+    @Override
+    public Map<String, Integer> getTopKeywords(int pageId, int limit) {
+        int entry = binarySearch(docIndexOffset, DOC_ENTRY_BYTES, pageCount, pageId);
+        if (entry < 0) {
+            return Collections.emptyMap();
+        }
+        ByteBuffer doc = links(entry);
+        for (int i = 0; i < 2; i++) {
+            int count = doc.getInt();   // child and parent IDs
+            doc.position(doc.position() + 4 * count);
+        }
+        
+        Map<String, Integer> keywords = new LinkedHashMap<>();
+        int keywordCount = Math.min(doc.getInt(), limit);
+        for (int i = 0; i < keywordCount; i++) {
+            String word = readString(doc);
+            keywords.put(word, doc.getInt());
+        }
+        return keywords;
+    }
+
+    /**
+     * Helper method to read the doc record of a doc index entry from its child IDs on
+     */
+    private ByteBuffer links(int entry) {
+        ByteBuffer doc = buffer.duplicate().position(buffer.getInt(entry + 4) + 4 + 8 + 8);
+        for (int i = 0; i < 3; i++) {
+            int length = doc.getInt();  // url, title, etag
+            if (length > 0) doc.position(doc.position() + length);
+        }
+        return doc;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing index snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write a snapshot of the index to a file. The snapshot is written under a temporary
+     * name and then renamed, so processes that have the previous snapshot mapped keep it.
+     */
+    public static void export(InvertedIndexManager index, File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile);
+             IndexSegment.CountingOutputStream counter =
+                     new IndexSegment.CountingOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+             DataOutputStream out = new DataOutputStream(counter)) {
+
+            // postings of every word that has any, with the word in UTF-8
+            List<byte[]> words = new ArrayList<>();
+            List<int[]> terms = new ArrayList<>();     // {wordId, postingsOffset}
+            Map<String, Integer> wordIds = index.getAllWordIds();
+            for (Map.Entry<String, Integer> entry : wordIds.entrySet()) {
+                int wordId = entry.getValue();
+                PostingList[] lists = {
+                        index.getBodyPostings(wordId), index.getTitlePostings(wordId),
+                        index.getBodyPositions(wordId), index.getTitlePositions(wordId)};
+                if (lists[0].isEmpty() && lists[1].isEmpty()) continue;
+
+                words.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                terms.add(new int[] {wordId, offset(counter)});
+                for (PostingList list : lists) {
+                    out.writeInt(list.isEmpty() ? 0 : list.bytes().length);
+                }
+                for (PostingList list : lists) {
+                    if (!list.isEmpty()) out.write(list.bytes());
+                }
+            }
+
+            Integer[] byWord = new Integer[terms.size()];
+            for (int i = 0; i < byWord.length; i++) byWord[i] = i;
+            Arrays.sort(byWord, (a, b) -> Arrays.compareUnsigned(words.get(a), words.get(b)));
+
+            int wordPoolOffset = offset(counter);
+            int[] wordOffsets = new int[terms.size()];
+            for (int i = 0; i < terms.size(); i++) {
+                wordOffsets[i] = offset(counter) - wordPoolOffset;
+                out.write(words.get(i));
+            }
+
+            int termIndexOffset = offset(counter);
+            for (int i : byWord) {
+                out.writeInt(wordOffsets[i]);
+                out.writeInt(words.get(i).length);
+                out.writeInt(terms.get(i)[0]);
+                out.writeInt(terms.get(i)[1]);
+            }
+
+            int wordIdIndexOffset = offset(counter);
+            terms.sort(Comparator.comparingInt(t -> t[0]));
+            for (int[] term : terms) {
+                out.writeInt(term[0]);
+                out.writeInt(term[1]);
+            }
+
+            int docsOffset = offset(counter);
+            List<Integer> pageIds = index.getAllPageIds();
+            Collections.sort(pageIds);
+            int[] docOffsets = new int[pageIds.size()];
+            for (int i = 0; i < pageIds.size(); i++) {
+                int pageId = pageIds.get(i);
+                docOffsets[i] = offset(counter);
+                InvertedIndexManager.PageInfo info = index.getPageInfo(pageId);
+                out.writeInt(index.getMaxTFForPageId(pageId));
+                out.writeLong(info == null ? 0 : info.lastModifiedDate);
+                out.writeLong(info == null ? 0 : info.size);
+                writeString(out, info == null ? "" : info.url);
+                writeString(out, info == null ? "" : info.title);
+                writeString(out, info == null ? null : info.etag);
+                List<Integer> children = info == null ? List.of() : info.childPageIds;
+                out.writeInt(children.size());
+                for (int childId : children) {
+                    out.writeInt(childId);
+                }
+                List<Integer> parents = index.getParentPageIds(pageId, Integer.MAX_VALUE);
+                out.writeInt(parents.size());
+                for (int parentId : parents) {
+                    out.writeInt(parentId);
+                }
+                Map<String, Integer> keywords = index.getTopKeywords(pageId, InvertedIndexManager.MAX_STORED_KEYWORDS);
+                out.writeInt(keywords.size());
+                for (Map.Entry<String, Integer> keyword : keywords.entrySet()) {
+                    writeString(out, keyword.getKey());
+                    out.writeInt(keyword.getValue());
+                }
+            }
+
+            int docIndexOffset = offset(counter);
+            for (int i = 0; i < pageIds.size(); i++) {
+                out.writeInt(pageIds.get(i));
+                out.writeInt(docOffsets[i]);
+            }
+
+            int statsOffset = offset(counter);
+            out.write(index.getCollectionStats().toBytes());
+
+            out.writeInt(wordPoolOffset);
+            out.writeInt(termIndexOffset);
+            out.writeInt(wordIdIndexOffset);
+            out.writeInt(docsOffset);
+            out.writeInt(docIndexOffset);
+            out.writeInt(statsOffset);
+            out.writeInt(terms.size());
+            out.writeInt(wordIds.size());
+            out.writeInt(pageIds.size());
+            out.writeLong(index.getGeneration());
+            out.writeInt(MAGIC);
+            offset(counter);    // the whole file is mapped at once
+            out.flush();
+            fileOut.getChannel().force(true);
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * Helper method to get the number of bytes written so far as an offset in the file,
+     * which must fit in an int
+     */
+    private static int offset(IndexSegment.CountingOutputStream counter) throws IOException {
+        if (counter.count() > Integer.MAX_VALUE) {
+            throw new IOException("Index too large for a snapshot: over " + Integer.MAX_VALUE + " bytes");
+        }
+        return (int) counter.count();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Export a snapshot of an existing index: java IndexSnapshot [dbName]
+     */
+    public static void main(String[] args) {
+        String dbName = args.length > 0 ? args[0] : "spider_index";
+        File file = new File(dbName + ".snapshot");
+        try (InvertedIndexManager index = new InvertedIndexManager(dbName)) {
+            export(index, file);
+            System.out.println("Index snapshot written to " + file);
+        } catch (IOException e) {
+            System.err.println("Error exporting index snapshot: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
@@ -3,16 +3,38 @@ import jdbm.RecordManagerFactory;
 import jdbm.helper.FastIterator;
 import jdbm.htree.HTree;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
-import java.net.URL;
-import java.net.URLConnection;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class manages the JDBM database for storing inverted indexes and related data.
+ *
+ * Postings are kept in immutable {@link IndexSegment} files in the directory
+ * dbName.segments, listed in the database. Newly indexed pages are buffered in
+ * memory and written out as a new segment when the buffer reaches its RAM budget
+ * or on {@link #flush()}; a re-indexed page is marked deleted in the segment that
+ * held it before. Whenever MERGE_FACTOR segments of about the same size exist, they
+ * are merged into one on a background thread, dropping deleted pages, so indexing
+ * cost stays proportional to the new postings rather than to the posting lists
+ * they are added to. Reads merge the postings of all live segments.
+ *
+ * The records of an indexed page are committed right away but its postings only
+ * with the next flush, so the pages in between are listed as unflushed. If the
+ * process stops before the flush, those pages are reset when the database is
+ * opened again, so that the crawler indexes them again.
  */
-public class InvertedIndexManager implements AutoCloseable {
+public class InvertedIndexManager implements SearchIndex {
+    private static final long DEFAULT_RAM_BUFFER_BYTES = 16 * 1024 * 1024;
+    private static final int BUFFERED_POSTING_BYTES = 64;   // estimated overhead of one buffered posting
+    private static final int MERGE_FACTOR = 10;
+    public static final int MAX_STORED_KEYWORDS = 20;
+
     private final String dbName;
     private RecordManager recman;
 
@@ -21,11 +43,14 @@ public class InvertedIndexManager implements AutoCloseable {
     
     private HTree wordIdToWordMap;
     private HTree wordToWordIdMap;
+    private TermDictionary termDictionary;  // in-memory copy of wordToWordIdMap
     
     private HTree pageInfoMap;
+    private HTree parentPageIdsMap;
     
-    private HTree bodyInvertedIndex;
-    private HTree titleInvertedIndex;
+    private HTree segmentInfoMap;
+    private HTree pageSegmentMap;
+    private HTree unflushedPagesMap;        // pages indexed since the last flush, see recoverUnflushedPages()
     
     private HTree pageIdToBodyWordsMap;
     private HTree pageIdToTitleWordsMap;
@@ -34,8 +59,39 @@ public class InvertedIndexManager implements AutoCloseable {
 
     private HTree maxTFForPageId;
     
+    private HTree termVectorMap;
+    private HTree topKeywordsMap;
+    
+    // collection statistics, stored as one record and marked stale in the counters until saved again
+    private CollectionStats.Builder statsBuilder = new CollectionStats.Builder();
+    private CollectionStats stats;          // built from statsBuilder, null after a change
+    private boolean statsStale;
+    
+    private long generation;                // counts indexed pages, see getGeneration()
+    
+    // live segments, by segment ID
+    private final File segmentDir;
+    private final Map<Integer, IndexSegment> segments = new TreeMap<>();
+    private final Map<Integer, IndexSegment.Info> segmentInfos = new TreeMap<>();
+    
+    // pages indexed since the last flush: word ID -> page ID -> positions
+    private final Map<Integer, TreeMap<Integer, int[]>> bufferedBody = new HashMap<>();
+    private final Map<Integer, TreeMap<Integer, int[]>> bufferedTitle = new HashMap<>();
+    private final Map<Integer, Set<Integer>> bufferedPageWords = new HashMap<>();
+    private final BitSet bufferedPages = new BitSet();
+    private long bufferedBytes;
+    private long ramBufferBytes = DEFAULT_RAM_BUFFER_BYTES;
+    private boolean segmentDirCleaned;
+    
+    // at most one merge runs at a time
+    private ExecutorService merger;
+    private Future<IndexSegment> runningMerge;
+    private Set<Integer> mergingIds = Collections.emptySet();
+    private int mergedId;
+    
     /**
-     * Class to store information about a page
+     * Class to store information about a page. Its words are kept apart, in the
+     * term vector and top keywords of the page.
      */
     public static class PageInfo implements Serializable {
         private static final long serialVersionUID = 1L;
@@ -44,8 +100,8 @@ public class InvertedIndexManager implements AutoCloseable {
         public String title;
         public long lastModifiedDate;
         public long size;
+        public String etag;
         public List<Integer> childPageIds = new ArrayList<>();
-        public Map<String, Integer> keywords = new HashMap<>();
         
         public PageInfo(String url, String title, long lastModifiedDate, long size) {
             this.url = url;
@@ -60,6 +116,7 @@ public class InvertedIndexManager implements AutoCloseable {
      */
     public InvertedIndexManager(String dbName) {
         this.dbName = dbName;
+        this.segmentDir = new File(dbName + ".segments");
         
         try {
             initializeDB();
@@ -82,11 +139,15 @@ public class InvertedIndexManager implements AutoCloseable {
         
         wordIdToWordMap = loadOrCreateHTree("wordIdToWord");
         wordToWordIdMap = loadOrCreateHTree("wordToWordId");
+        termDictionary = new TermDictionary(loadWordIds());
         
         pageInfoMap = loadOrCreateHTree("pageInfo");
+        boolean hasParentIndex = recman.getNamedObject("parentPageIds") != 0;
+        parentPageIdsMap = loadOrCreateHTree("parentPageIds");
         
-        bodyInvertedIndex = loadOrCreateHTree("bodyInvertedIndex");
-        titleInvertedIndex = loadOrCreateHTree("titleInvertedIndex");
+        segmentInfoMap = loadOrCreateHTree("segments");
+        pageSegmentMap = loadOrCreateHTree("pageSegment");
+        unflushedPagesMap = loadOrCreateHTree("unflushedPages");
         
         pageIdToBodyWordsMap = loadOrCreateHTree("pageIdToBodyWords");
         pageIdToTitleWordsMap = loadOrCreateHTree("pageIdToTitleWords");
@@ -95,6 +156,10 @@ public class InvertedIndexManager implements AutoCloseable {
 
         maxTFForPageId = loadOrCreateHTree("maxTFForPageId");
         
+        boolean hasKeywordIndex = recman.getNamedObject("topKeywords") != 0;
+        termVectorMap = loadOrCreateHTree("termVectors");
+        topKeywordsMap = loadOrCreateHTree("topKeywords");
+        
         // Initialize counters if they don't exist
         if (counterMap.get("pageId") == null) {
             counterMap.put("pageId", 0);
@@ -102,10 +167,223 @@ public class InvertedIndexManager implements AutoCloseable {
         if (counterMap.get("wordId") == null) {
             counterMap.put("wordId", 0);
         }
+        if (counterMap.get("segmentId") == null) {
+            counterMap.put("segmentId", 0);
+        }
+        if (counterMap.get("generation") == null) {
+            counterMap.put("generation", 0L);
+        }
+        generation = (Long) counterMap.get("generation");
+        
+        if (!hasParentIndex) {
+            buildParentIndex();
+        }
+        
+        recman.commit();
+        
+        segmentDir.mkdirs();
+        FastIterator iter = segmentInfoMap.keys();
+        Object key;
+        while ((key = iter.next()) != null) {
+            IndexSegment.Info info = (IndexSegment.Info) segmentInfoMap.get(key);
+            segmentInfos.put(info.id, info);
+            segments.put(info.id, IndexSegment.open(new File(segmentDir, info.fileName)));
+        }
+        if (segmentInfos.isEmpty()) {
+            migrateLegacyPostings();
+        }
+        if (!hasKeywordIndex) {
+            buildTermVectors();
+        }
+        recoverUnflushedPages();
+        loadCollectionStats();
+    }
+    
+    /**
+     * Pages indexed after the last flush of a process that stopped without flushing have
+     * their records but not their postings. Reset them to pages without words (and without
+     * their earlier postings), so that the crawler indexes them again, and have the
+     * collection statistics rebuilt to match.
+     */
+    private void recoverUnflushedPages() throws IOException {
+        List<Integer> pageIds = new ArrayList<>();
+        FastIterator iter = unflushedPagesMap.keys();
+        Object key;
+        while ((key = iter.next()) != null) {
+            pageIds.add((Integer) key);
+        }
+        if (pageIds.isEmpty()) return;
+        
+        System.out.println("Resetting " + pageIds.size() + " pages indexed after the last flush");
+        for (int pageId : pageIds) {
+            Integer segmentId = (Integer) pageSegmentMap.get(pageId);
+            IndexSegment.Info info = segmentId == null ? null : segmentInfos.get(segmentId);
+            if (info != null) {
+                info.deleted.set(pageId);
+                segmentInfoMap.put(info.id, info);
+            }
+            pageSegmentMap.remove(pageId);
+            pageIdToBodyWordsMap.put(pageId, new ArrayList<String>());
+            pageIdToTitleWordsMap.put(pageId, new ArrayList<String>());
+            termVectorMap.remove(pageId);
+            topKeywordsMap.remove(pageId);
+            maxTFForPageId.remove(pageId);
+            unflushedPagesMap.remove(pageId);
+        }
+        counterMap.put("collectionStatsStale", true);
+        recman.commit();
+    }
+    
+    /**
+     * Load the collection statistics record, or rebuild it from the page trees and the
+     * postings if it is missing, in an older format or was not saved after the last change
+     */
+    private void loadCollectionStats() throws IOException {
+        long recid = recman.getNamedObject("collectionStats");
+        if (recid != 0 && !Boolean.TRUE.equals(counterMap.get("collectionStatsStale"))) {
+            try {
+                stats = CollectionStats.fromBytes((byte[]) recman.fetch(recid));
+                statsBuilder = new CollectionStats.Builder(stats);
+                return;
+            } catch (IOException e) {
+                System.out.println("Rebuilding collection statistics: " + e.getMessage());
+            }
+        }
+        statsBuilder = new CollectionStats.Builder();
+        for (int pageId : getAllPageIds()) {
+            statsBuilder.addPage(pageId);
+            statsBuilder.setTermVector(pageId, getTermVector(pageId).values());
+        }
+        for (int wordId : getAllWordIds().values()) {
+            PostingList.Cursor body = getBodyPostings(wordId).cursor();
+            PostingList.Cursor title = getTitlePostings(wordId).cursor();
+            body.next();
+            title.next();
+            while (body.doc() != PostingList.NO_MORE_DOCS || title.doc() != PostingList.NO_MORE_DOCS) {
+                int doc = Math.min(body.doc(), title.doc());
+                int bodyTF = body.doc() == doc ? body.freq() : 0;
+                int titleTF = title.doc() == doc ? title.freq() : 0;
+                statsBuilder.addTerm(wordId, bodyTF, titleTF);
+                if (bodyTF > 0) body.next();
+                if (titleTF > 0) title.next();
+            }
+        }
+        stats = null;
+        saveCollectionStats();
+        recman.commit();
+    }
+    
+    /**
+     * Helper method to write the collection statistics record; the caller commits
+     */
+    private void saveCollectionStats() throws IOException {
+        byte[] bytes = getCollectionStats().toBytes();
+        long recid = recman.getNamedObject("collectionStats");
+        if (recid == 0) {
+            recman.setNamedObject("collectionStats", recman.insert(bytes));
+        } else {
+            recman.update(recid, bytes);
+        }
+        counterMap.put("collectionStatsStale", false);
+        statsStale = false;
+    }
+    
+    /**
+     * Helper method to note a change of the collection statistics, committed with the change itself
+     */
+    private void statsChanged() throws IOException {
+        stats = null;
+        if (!statsStale) {
+            counterMap.put("collectionStatsStale", true);
+            statsStale = true;
+        }
+    }
+    
+    /**
+     * Term vectors used to be stored in PageInfo; rebuild them from the postings
+     */
+    private void buildTermVectors() throws IOException {
+        Map<Integer, Map<String, Integer>> vectors = new HashMap<>();
+        for (Map.Entry<String, Integer> word : getAllWordIds().entrySet()) {
+            for (PostingList postings : List.of(getBodyPostings(word.getValue()), getTitlePostings(word.getValue()))) {
+                PostingList.Cursor cursor = postings.cursor();
+                while (cursor.next()) {
+                    vectors.computeIfAbsent(cursor.doc(), k -> new HashMap<>()).merge(word.getKey(), cursor.freq(), Integer::sum);
+                }
+            }
+        }
+        for (Map.Entry<Integer, Map<String, Integer>> vector : vectors.entrySet()) {
+            putTermVector(vector.getKey(), vector.getValue());
+        }
+        recman.commit();
+    }
+    
+    /**
+     * Fill the parent index from the child links of every page, for a database created before it existed
+     */
+    private void buildParentIndex() throws IOException {
+        FastIterator iter = pageInfoMap.keys();
+        Object key;
+        while ((key = iter.next()) != null) {
+            PageInfo pageInfo = (PageInfo) pageInfoMap.get(key);
+            for (Integer childPageId : pageInfo.childPageIds) {
+                addParentPage(childPageId, (Integer) key);
+            }
+        }
+    }
+    
+    /**
+     * Postings used to be stored in HTrees in the database itself; move them into a first segment
+     */
+    private void migrateLegacyPostings() throws IOException {
+        String[] legacyNames = {"bodyInvertedIndex", "titleInvertedIndex", "bodyPositionIndex", "titlePositionIndex"};
+        HTree[] legacy = new HTree[IndexSegment.FIELDS];
+        TreeSet<Integer> wordIds = new TreeSet<>();
+        for (int field = 0; field < legacy.length; field++) {
+            long recid = recman.getNamedObject(legacyNames[field]);
+            if (recid == 0) continue;
+            legacy[field] = HTree.load(recman, recid);
+            FastIterator iter = legacy[field].keys();
+            Object key;
+            while ((key = iter.next()) != null) {
+                wordIds.add((Integer) key);
+            }
+        }
+        if (wordIds.isEmpty()) return;
         
+        System.out.println("Moving the postings of " + wordIds.size() + " words into an index segment");
+        BitSet pages = new BitSet();
+        int id = nextSegmentId();
+        File file = new File(segmentDir, segmentFileName(id));
+        try (IndexSegment.Writer writer = new IndexSegment.Writer(file)) {
+            for (int wordId : wordIds) {
+                PostingList[] lists = new PostingList[IndexSegment.FIELDS];
+                for (int field = 0; field < lists.length; field++) {
+                    boolean positional = field >= IndexSegment.BODY_POSITIONS;
+                    lists[field] = legacy[field] == null ? IndexSegment.emptyList(field) : readPostings(legacy[field], wordId, positional);
+                    PostingList.Cursor cursor = lists[field].cursor();
+                    while (cursor.next()) pages.set(cursor.doc());
+                }
+                writer.addTerm(wordId, lists);
+            }
+            IndexSegment segment = writer.finish(pages.stream().toArray());
+            addSegment(new IndexSegment.Info(id, file.getName(), segment.pageIds().length), segment);
+        }
+        for (String name : legacyNames) {
+            recman.setNamedObject(name, 0);
+        }
         recman.commit();
     }
     
+    /**
+     * Helper method to give a list or map read from an HTree the generic type it was
+     * stored with (JDBM hands back plain Objects)
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T stored(Object value) {
+        return (T) value;
+    }
+    
     /**
      * Helper method to load or create an HTree
      */
@@ -120,6 +398,13 @@ public class InvertedIndexManager implements AutoCloseable {
         }
     }
     
+    /**
+     * Set how much memory newly indexed pages may take before they are written out as a segment
+     */
+    public void setRamBufferBytes(long ramBufferBytes) {
+        this.ramBufferBytes = ramBufferBytes;
+    }
+    
     /**
      * Get a new page ID
      */
@@ -134,36 +419,67 @@ public class InvertedIndexManager implements AutoCloseable {
      * Get a word ID, creating a new one if the word doesn't exist
      */
     public int getWordId(String word) throws IOException {
-        if (wordToWordIdMap.get(word) != null) {
-            return (Integer) wordToWordIdMap.get(word);
+        int id = termDictionary.get(word);
+        if (id >= 0) {
+            return id;
         } else {
             int nextId = (Integer) counterMap.get("wordId");
             counterMap.put("wordId", nextId + 1);
             
             wordToWordIdMap.put(word, nextId);
             wordIdToWordMap.put(nextId, word);
+            termDictionary.add(word, nextId);
             
             recman.commit();
             return nextId;
         }
     }
 
+    /**
+     * Helper method to read every word and its word ID from the database
+     */
+    private Map<String, Integer> loadWordIds() throws IOException {
+        Map<String, Integer> wordIds = new HashMap<>();
+        FastIterator iter = wordToWordIdMap.keys();
+        Object key;
+        while ((key = iter.next()) != null) {
+            wordIds.put((String) key, (Integer) wordToWordIdMap.get(key));
+        }
+        return wordIds;
+    }
+
+    /**
+     * Get every word in the index with its word ID, in sorted order
+     */
+    public Map<String, Integer> getAllWordIds() {
+        return getWordIdsWithPrefix("");
+    }
+
+    /**
+     * Get the words starting with a prefix with their word IDs, in sorted order
+     */
+    public Map<String, Integer> getWordIdsWithPrefix(String prefix) {
+        Map<String, Integer> wordIds = new LinkedHashMap<>();
+        termDictionary.forEachWithPrefix(prefix, wordIds::put);
+        return wordIds;
+    }
+
     /**
      * Get a word ID if it exists (do not create a new one).
      */
-    public Integer getWordIdIfExists(String word) throws IOException {
-        Object id = wordToWordIdMap.get(word);
-        return id == null ? null : (Integer) id;
+    @Override
+    public Integer getWordIdIfExists(String word) {
+        int id = termDictionary.get(word);
+        return id < 0 ? null : id;
     }
 
-    public boolean hasUpdate(String url) throws IOException {
+    /**
+     * Check whether a fetched page differs from the stored copy, by last-modified date or ETag
+     */
+    public boolean hasUpdate(String url, long lastModifiedDate, String etag) throws IOException {
         if (urlToPageIdMap.get(url) != null){
             PageInfo page = (PageInfo) pageInfoMap.get(urlToPageIdMap.get(url));
-
-            URL url_check_date = new URL(url);
-            URLConnection connection_check_date = url_check_date.openConnection();
-            connection_check_date.getLastModified();
-            return (connection_check_date.getLastModified() > page.lastModifiedDate);
+            return (lastModifiedDate > page.lastModifiedDate || (etag != null && !etag.equals(page.etag)));
         } else {
             return false;
         }
@@ -173,10 +489,18 @@ public class InvertedIndexManager implements AutoCloseable {
         return (urlToPageIdMap.get(url) != null);
     }
 
+    /**
+     * Get a page ID if the URL has been added (do not create a new one).
+     */
+    public Integer getPageIdIfExists(String url) throws IOException {
+        Object id = urlToPageIdMap.get(url);
+        return id == null ? null : (Integer) id;
+    }
+
     public boolean hasKeyword(String url) throws IOException {
         if (urlToPageIdMap.get(url) != null){
-            ArrayList<String> bodyWordList = (ArrayList<String>) pageIdToBodyWordsMap.get(urlToPageIdMap.get(url));
-            ArrayList<String> titleWordList = (ArrayList<String>) pageIdToTitleWordsMap.get(urlToPageIdMap.get(url));
+            ArrayList<String> bodyWordList = stored(pageIdToBodyWordsMap.get(urlToPageIdMap.get(url)));
+            ArrayList<String> titleWordList = stored(pageIdToTitleWordsMap.get(urlToPageIdMap.get(url)));
             return (!bodyWordList.isEmpty() || !titleWordList.isEmpty());
         } else {
             return false;
@@ -188,12 +512,22 @@ public class InvertedIndexManager implements AutoCloseable {
      * Add a page to the database
      */
     public int addPage(String url, String title, long lastModifiedDate, long size) throws IOException {
+        return addPage(url, title, lastModifiedDate, size, null);
+    }
+
+    /**
+     * Add a page to the database, keeping the ETag it was served with for conditional re-crawls
+     */
+    public int addPage(String url, String title, long lastModifiedDate, long size, String etag) throws IOException {
         // Check if URL already exists
         if (urlToPageIdMap.get(url) != null) {
-            // add back title as the page has no title if it's child page
+            // add back title, date and size as the page has none if it was added as a child page
             if (!title.equals("")){
                 PageInfo newPageInfo = getPageInfo((Integer) urlToPageIdMap.get(url));
                 newPageInfo.title = title;
+                newPageInfo.lastModifiedDate = lastModifiedDate;
+                newPageInfo.size = size;
+                newPageInfo.etag = etag;
                 pageInfoMap.put(urlToPageIdMap.get(url), newPageInfo);
                 recman.commit();
             }
@@ -209,12 +543,16 @@ public class InvertedIndexManager implements AutoCloseable {
         
         // Create page info and store it
         PageInfo pageInfo = new PageInfo(url, title, lastModifiedDate, size);
+        pageInfo.etag = etag;
         pageInfoMap.put(pageId, pageInfo);
         
         // Initialize word lists for phrase search
         pageIdToBodyWordsMap.put(pageId, new ArrayList<String>());
         pageIdToTitleWordsMap.put(pageId, new ArrayList<String>());
         
+        statsBuilder.addPage(pageId);
+        statsChanged();
+        
         // Commit changes
         recman.commit();
         
@@ -230,74 +568,480 @@ public class InvertedIndexManager implements AutoCloseable {
             if (!pageInfo.childPageIds.contains(childPageId)) {
                 pageInfo.childPageIds.add(childPageId);
                 pageInfoMap.put(parentPageId, pageInfo);
+                addParentPage(childPageId, parentPageId);
                 recman.commit();
             }
         }
     }
     
     /**
-     * Add a word occurrence to the body inverted index
+     * Helper method to record a link in the parent index (child page ID -> parent page IDs)
+     */
+    private void addParentPage(int childPageId, int parentPageId) throws IOException {
+        ArrayList<Integer> parents = stored(parentPageIdsMap.get(childPageId));
+        if (parents == null) {
+            parents = new ArrayList<>();
+        }
+        if (!parents.contains(parentPageId)) {
+            parents.add(parentPageId);
+            parentPageIdsMap.put(childPageId, parents);
+        }
+    }
+    
+    /**
+     * Get the IDs of (at most limit) pages that link to a page, in the order the links were found
      */
-    public void addWordToBody(int pageId, String word, int frequency) throws IOException {
-        int wordId = getWordId(word);
+    @Override
+    public List<Integer> getParentPageIds(int pageId, int limit) throws IOException {
+        List<Integer> parents = stored(parentPageIdsMap.get(pageId));
+        if (parents == null) {
+            return Collections.emptyList();
+        }
+        return parents.size() <= limit ? parents : new ArrayList<>(parents.subList(0, limit));
+    }
+    
+    /**
+     * Get the URL of a page without reading its page information
+     */
+    @Override
+    public String getPageUrl(int pageId) throws IOException {
+        return (String) pageIdToUrlMap.get(pageId);
+    }
+    
+    /**
+     * Index all the title and body words of a page in one transaction.
+     * The terms are given in page order (stop words removed and stemmed), and their
+     * frequencies and positions are derived from it. The postings go to the in-memory
+     * buffer, which is flushed to a new segment once it is over its RAM budget; the
+     * word lists, page info and max tf are written with one commit, which also lists
+     * the page as unflushed until then.
+     * A re-indexed page replaces all of its earlier postings.
+     */
+    public void indexDocument(int pageId, List<String> titleTerms, List<String> bodyTerms) throws IOException {
+        Map<String, int[]> bodyPositions = termPositions(bodyTerms);
+        Map<String, int[]> titlePositions = termPositions(titleTerms);
         
-        // Update inverted index
-        HashMap<Integer, Integer> postings = (HashMap<Integer, Integer>) bodyInvertedIndex.get(wordId);
-        if (postings == null) {
-            postings = new HashMap<>();
+        // assign IDs to new words, updating the counter once
+        int nextWordId = (Integer) counterMap.get("wordId");
+        Map<String, Integer> wordIds = new HashMap<>();
+        for (Map<String, int[]> positions : List.of(bodyPositions, titlePositions)) {
+            for (String word : positions.keySet()) {
+                if (wordIds.containsKey(word)) continue;
+                int wordId = termDictionary.get(word);
+                if (wordId < 0) {
+                    wordId = nextWordId++;
+                    wordToWordIdMap.put(word, wordId);
+                    wordIdToWordMap.put(wordId, word);
+                    termDictionary.add(word, wordId);
+                }
+                wordIds.put(word, wordId);
+            }
         }
-        postings.put(pageId, frequency);
-        bodyInvertedIndex.put(wordId, postings);
+        counterMap.put("wordId", nextWordId);
         
-        // Add to word list for phrase search
-        List<String> words = (List<String>) pageIdToBodyWordsMap.get(pageId);
-        words.add(word);
-        pageIdToBodyWordsMap.put(pageId, words);
+        updateTermStats(pageId, bodyPositions, titlePositions, wordIds);
         
-        // Update PageInfo keywords map for fast lookup
-        PageInfo pageInfo = getPageInfo(pageId);
-        if (pageInfo != null) {
-            pageInfo.keywords.put(word, pageInfo.keywords.getOrDefault(word, 0) + frequency);
-            pageInfoMap.put(pageId, pageInfo);
-            recman.commit();
-        }
+        removeFromBuffer(pageId);
+        Set<Integer> pageWords = new HashSet<>();
+        bufferPostings(bufferedBody, pageId, bodyPositions, wordIds, pageWords);
+        bufferPostings(bufferedTitle, pageId, titlePositions, wordIds, pageWords);
+        bufferedPageWords.put(pageId, pageWords);
+        bufferedPages.set(pageId);
+        
+        pageIdToBodyWordsMap.put(pageId, new ArrayList<>(bodyPositions.keySet()));
+        pageIdToTitleWordsMap.put(pageId, new ArrayList<>(titlePositions.keySet()));
+        
+        // term vector and top keywords of the page
+        HashMap<String, Integer> keywords = new HashMap<>();
+        bodyPositions.forEach((word, positions) -> keywords.merge(word, positions.length, Integer::sum));
+        titlePositions.forEach((word, positions) -> keywords.merge(word, positions.length, Integer::sum));
+        putTermVector(pageId, keywords);
         
+        unflushedPagesMap.put(pageId, Boolean.TRUE);
+        counterMap.put("generation", ++generation);
         recman.commit();
+        
+        if (bufferedBytes >= ramBufferBytes) {
+            flush();
+        } else {
+            installFinishedMerge(false);
+        }
     }
     
     /**
-     * Add a word occurrence to the title inverted index
+     * Helper method to replace the counts of a page's earlier words in the term statistics
+     * with those of its new words; must run before the page's word lists are replaced
      */
-    public void addWordToTitle(int pageId, String word, int frequency) throws IOException {
-        int wordId = getWordId(word);
+    private void updateTermStats(int pageId, Map<String, int[]> bodyPositions, Map<String, int[]> titlePositions,
+                                 Map<String, Integer> wordIds) throws IOException {
+        Set<String> oldBody = wordSet(stored(pageIdToBodyWordsMap.get(pageId)));
+        Set<String> oldTitle = wordSet(stored(pageIdToTitleWordsMap.get(pageId)));
+        Set<String> oldWords = new HashSet<>(oldBody);
+        oldWords.addAll(oldTitle);
+        if (!oldWords.isEmpty()) {
+            Map<String, Integer> oldVector = getTermVector(pageId);
+            for (String word : oldWords) {
+                int wordId = termDictionary.get(word);
+                if (wordId < 0) continue;
+                statsBuilder.removeTerm(wordId, oldBody.contains(word), oldTitle.contains(word),
+                        oldVector.getOrDefault(word, 0));
+            }
+        }
         
-        // Update inverted index
-        HashMap<Integer, Integer> postings = (HashMap<Integer, Integer>) titleInvertedIndex.get(wordId);
+        for (Map.Entry<String, Integer> word : wordIds.entrySet()) {
+            int[] body = bodyPositions.get(word.getKey());
+            int[] title = titlePositions.get(word.getKey());
+            statsBuilder.addTerm(word.getValue(), body == null ? 0 : body.length, title == null ? 0 : title.length);
+        }
+        statsChanged();
+    }
+    
+    private static Set<String> wordSet(List<String> words) {
+        return words == null ? Collections.emptySet() : new HashSet<>(words);
+    }
+    
+    /**
+     * Helper method to store the term vector of a page with its top keywords and max tf
+     */
+    private void putTermVector(int pageId, Map<String, Integer> keywords) throws IOException {
+        termVectorMap.put(pageId, keywords);
+        topKeywordsMap.put(pageId, sortByValueAndLimit(keywords, MAX_STORED_KEYWORDS));
+        if (!keywords.isEmpty()) {
+            maxTFForPageId.put(pageId, sortByValueAndLimit(keywords, 1));
+        }
+        statsBuilder.setTermVector(pageId, keywords.values());
+        statsChanged();
+    }
+    
+    /**
+     * Helper method to add the postings of one field of a page to the buffer
+     */
+    private void bufferPostings(Map<Integer, TreeMap<Integer, int[]>> buffer, int pageId, Map<String, int[]> termPositions,
+                                Map<String, Integer> wordIds, Set<Integer> pageWords) {
+        for (Map.Entry<String, int[]> entry : termPositions.entrySet()) {
+            int wordId = wordIds.get(entry.getKey());
+            buffer.computeIfAbsent(wordId, k -> new TreeMap<>()).put(pageId, entry.getValue());
+            pageWords.add(wordId);
+            bufferedBytes += BUFFERED_POSTING_BYTES + 4L * entry.getValue().length;
+        }
+    }
+    
+    /**
+     * Helper method to drop the buffered postings of a page that is indexed again before a flush
+     */
+    private void removeFromBuffer(int pageId) {
+        Set<Integer> pageWords = bufferedPageWords.remove(pageId);
+        if (pageWords == null) return;
+        for (int wordId : pageWords) {
+            for (Map<Integer, TreeMap<Integer, int[]>> buffer : List.of(bufferedBody, bufferedTitle)) {
+                TreeMap<Integer, int[]> postings = buffer.get(wordId);
+                int[] positions = postings == null ? null : postings.remove(pageId);
+                if (positions != null) {
+                    bufferedBytes -= BUFFERED_POSTING_BYTES + 4L * positions.length;
+                    if (postings.isEmpty()) buffer.remove(wordId);
+                }
+            }
+        }
+        bufferedPages.clear(pageId);
+    }
+    
+    /**
+     * Helper method to encode the buffered postings of a word in one field
+     */
+    private static PostingList bufferedList(Map<Integer, TreeMap<Integer, int[]>> buffer, int wordId, boolean positional) {
+        TreeMap<Integer, int[]> postings = buffer.get(wordId);
         if (postings == null) {
-            postings = new HashMap<>();
+            return positional ? PostingList.EMPTY_POSITIONAL : PostingList.EMPTY;
+        }
+        PostingList.Builder builder = new PostingList.Builder(positional);
+        for (Map.Entry<Integer, int[]> entry : postings.entrySet()) {
+            builder.add(entry.getKey(), entry.getValue().length, entry.getValue());
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Write the buffered pages out as a new segment, and mark their earlier postings deleted
+     */
+    public void flush() throws IOException {
+        installFinishedMerge(false);
+        if (statsStale) {
+            saveCollectionStats();
+            recman.commit();
+        }
+        if (bufferedPages.isEmpty()) return;
+        if (!segmentDirCleaned) {
+            removeUnusedSegmentFiles();
+        }
+        
+        TreeSet<Integer> wordIds = new TreeSet<>(bufferedBody.keySet());
+        wordIds.addAll(bufferedTitle.keySet());
+        int id = nextSegmentId();
+        File file = new File(segmentDir, segmentFileName(id));
+        IndexSegment segment;
+        try (IndexSegment.Writer writer = new IndexSegment.Writer(file)) {
+            for (int wordId : wordIds) {
+                writer.addTerm(wordId, new PostingList[] {
+                        bufferedList(bufferedBody, wordId, false),
+                        bufferedList(bufferedTitle, wordId, false),
+                        bufferedList(bufferedBody, wordId, true),
+                        bufferedList(bufferedTitle, wordId, true)});
+            }
+            segment = writer.finish(bufferedPages.stream().toArray());
         }
-        postings.put(pageId, frequency);
-        titleInvertedIndex.put(wordId, postings);
         
-        // Add to word list for phrase search
-        List<String> words = (List<String>) pageIdToTitleWordsMap.get(pageId);
-        words.add(word);
-        pageIdToTitleWordsMap.put(pageId, words);
+        for (int pageId : segment.pageIds()) {
+            Integer oldId = (Integer) pageSegmentMap.get(pageId);
+            IndexSegment.Info old = oldId == null ? null : segmentInfos.get(oldId);
+            if (old != null) {
+                old.deleted.set(pageId);
+                segmentInfoMap.put(old.id, old);
+            }
+            pageSegmentMap.put(pageId, id);
+            unflushedPagesMap.remove(pageId);
+        }
+        addSegment(new IndexSegment.Info(id, file.getName(), segment.pageIds().length), segment);
+        recman.commit();
+        System.out.println("Flushed " + segment.pageIds().length + " pages to index segment " + id);
         
-        // Update PageInfo keywords map for fast lookup
-        PageInfo pageInfo = getPageInfo(pageId);
-        if (pageInfo != null) {
-            pageInfo.keywords.put(word, pageInfo.keywords.getOrDefault(word, 0) + frequency);
-            pageInfoMap.put(pageId, pageInfo);
+        bufferedBody.clear();
+        bufferedTitle.clear();
+        bufferedPageWords.clear();
+        bufferedPages.clear();
+        bufferedBytes = 0;
+        
+        maybeMerge();
+    }
+    
+    private int nextSegmentId() throws IOException {
+        int id = (Integer) counterMap.get("segmentId");
+        counterMap.put("segmentId", id + 1);
+        return id;
+    }
+    
+    private static String segmentFileName(int id) {
+        return "segment-" + id + ".seg";
+    }
+    
+    private void addSegment(IndexSegment.Info info, IndexSegment segment) throws IOException {
+        segmentInfoMap.put(info.id, info);
+        segmentInfos.put(info.id, info);
+        segments.put(info.id, segment);
+    }
+    
+    private void removeSegment(int id) throws IOException {
+        segmentInfoMap.remove(id);
+        segmentInfos.remove(id);
+        IndexSegment segment = segments.remove(id);
+        if (segment != null) {
+            segment.close();
+            segment.file().delete();
+        }
+    }
+    
+    /**
+     * Helper method to delete segment files left behind by an interrupted flush or merge
+     */
+    private void removeUnusedSegmentFiles() {
+        Set<String> live = new HashSet<>();
+        for (IndexSegment.Info info : segmentInfos.values()) {
+            live.add(info.fileName);
+        }
+        File[] files = segmentDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!live.contains(file.getName())) file.delete();
+            }
+        }
+        segmentDirCleaned = true;
+    }
+    
+    /**
+     * Drop segments without live pages, and start merging the oldest MERGE_FACTOR segments of
+     * the smallest size level that has that many. The level of a segment is the number of
+     * digits of its live page count in base MERGE_FACTOR.
+     */
+    private void maybeMerge() throws IOException {
+        if (runningMerge != null) return;
+        
+        for (IndexSegment.Info info : new ArrayList<>(segmentInfos.values())) {
+            if (info.liveCount() == 0) {
+                removeSegment(info.id);
+                recman.commit();
+            }
+        }
+        
+        TreeMap<Integer, List<Integer>> levels = new TreeMap<>();
+        for (IndexSegment.Info info : segmentInfos.values()) {
+            int level = (int) (Math.log(info.liveCount()) / Math.log(MERGE_FACTOR));
+            levels.computeIfAbsent(level, k -> new ArrayList<>()).add(info.id);
+        }
+        for (List<Integer> ids : levels.values()) {
+            if (ids.size() < MERGE_FACTOR) continue;
+            
+            List<Integer> mergeIds = ids.subList(0, MERGE_FACTOR);
+            IndexSegment[] sources = new IndexSegment[mergeIds.size()];
+            BitSet[] deleted = new BitSet[mergeIds.size()];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = segments.get(mergeIds.get(i));
+                deleted[i] = (BitSet) segmentInfos.get(mergeIds.get(i)).deleted.clone();
+            }
+            int id = nextSegmentId();
             recman.commit();
+            File file = new File(segmentDir, segmentFileName(id));
+            
+            if (merger == null) {
+                merger = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "index-merger");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            mergingIds = new LinkedHashSet<>(mergeIds);
+            mergedId = id;
+            runningMerge = merger.submit(() -> mergeSegments(sources, deleted, file));
+            return;
+        }
+    }
+    
+    /**
+     * Write the live postings of several segments into a new segment. Runs on the merge
+     * thread and only reads the (immutable) source files.
+     */
+    private static IndexSegment mergeSegments(IndexSegment[] sources, BitSet[] deleted, File file) throws IOException {
+        TreeSet<Integer> wordIds = new TreeSet<>();
+        BitSet pages = new BitSet();
+        for (int i = 0; i < sources.length; i++) {
+            for (int wordId : sources[i].wordIds()) wordIds.add(wordId);
+            for (int pageId : sources[i].pageIds()) {
+                if (!deleted[i].get(pageId)) pages.set(pageId);
+            }
+        }
+        try (IndexSegment.Writer writer = new IndexSegment.Writer(file)) {
+            PostingList[] lists = new PostingList[sources.length];
+            for (int wordId : wordIds) {
+                PostingList[] merged = new PostingList[IndexSegment.FIELDS];
+                for (int field = 0; field < merged.length; field++) {
+                    for (int i = 0; i < sources.length; i++) {
+                        lists[i] = sources[i].postings(wordId, field);
+                    }
+                    merged[field] = PostingList.merge(lists, deleted, field >= IndexSegment.BODY_POSITIONS);
+                }
+                writer.addTerm(wordId, merged);
+            }
+            return writer.finish(pages.stream().toArray());
+        }
+    }
+    
+    /**
+     * Replace the segments of a completed merge by the merged segment. Pages that were
+     * re-indexed while the merge ran are marked deleted in it. A wait that is interrupted
+     * gives the merge up, leaving its source segments in place.
+     */
+    private void installFinishedMerge(boolean wait) throws IOException {
+        if (runningMerge == null || (!wait && !runningMerge.isDone())) return;
+        
+        IndexSegment merged;
+        try {
+            merged = runningMerge.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandonMerge();
+            return;
+        } catch (ExecutionException e) {
+            System.err.println("Error merging index segments " + mergingIds + ": " + e.getCause().getMessage());
+            runningMerge = null;
+            mergingIds = Collections.emptySet();
+            return;
         }
         
+        int id = mergedId;
+        IndexSegment.Info info = new IndexSegment.Info(id, merged.file().getName(), merged.pageIds().length);
+        for (int pageId : merged.pageIds()) {
+            Integer current = (Integer) pageSegmentMap.get(pageId);
+            if (current != null && mergingIds.contains(current)) {
+                pageSegmentMap.put(pageId, id);
+            } else {
+                info.deleted.set(pageId);
+            }
+        }
+        for (int sourceId : mergingIds) {
+            segmentInfoMap.remove(sourceId);
+        }
+        addSegment(info, merged);
         recman.commit();
+        for (int sourceId : mergingIds) {
+            removeSegment(sourceId);
+        }
+        System.out.println("Merged index segments " + mergingIds + " into segment " + id + " (" + info.liveCount() + " pages)");
+        
+        runningMerge = null;
+        mergingIds = Collections.emptySet();
+        maybeMerge();
+    }
+    
+    /**
+     * Cancel the running merge and delete its partial segment. A file the merge thread
+     * still writes after this is removed as unused by the first flush after reopening.
+     */
+    private void abandonMerge() {
+        runningMerge.cancel(true);
+        new File(segmentDir, segmentFileName(mergedId)).delete();
+        System.err.println("Gave up merging index segments " + mergingIds + ": interrupted");
+        runningMerge = null;
+        mergingIds = Collections.emptySet();
+    }
+    
+    /**
+     * Number of segments the index currently consists of
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+    
+    /**
+     * Helper method to collect the (ascending) positions of every term in a list of terms
+     */
+    private static Map<String, int[]> termPositions(List<String> terms) {
+        Map<String, List<Integer>> positions = new HashMap<>();
+        for (int i = 0; i < terms.size(); i++) {
+            positions.computeIfAbsent(terms.get(i), k -> new ArrayList<>()).add(i);
+        }
+        Map<String, int[]> result = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : positions.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        return result;
+    }
+    
+    /**
+     * Helper method to read the posting list of a word from a legacy postings HTree. Lists
+     * written before postings were encoded (a HashMap of page ID to frequency or positions) are converted.
+     */
+    private static PostingList readPostings(HTree index, Object wordId, boolean positional) throws IOException {
+        Object value = index.get(wordId);
+        if (value == null) {
+            return positional ? PostingList.EMPTY_POSITIONAL : PostingList.EMPTY;
+        }
+        if (value instanceof byte[]) {
+            return PostingList.decode((byte[]) value);
+        }
+        Map<Integer, ?> legacy = stored(value);
+        PostingList.Builder builder = new PostingList.Builder(positional);
+        for (Map.Entry<Integer, ?> entry : new TreeMap<>(legacy).entrySet()) {
+            if (positional) {
+                builder.add(entry.getKey(), (int[]) entry.getValue());
+            } else {
+                builder.add(entry.getKey(), (Integer) entry.getValue());
+            }
+        }
+        return builder.build();
     }
     
     /**
      * Get page information by page ID
      */
+    @Override
     public PageInfo getPageInfo(int pageId) throws IOException {
         return (PageInfo) pageInfoMap.get(pageId);
     }
@@ -305,6 +1049,7 @@ public class InvertedIndexManager implements AutoCloseable {
     /**
      * Get all indexed pages
      */
+    @Override
     public List<Integer> getAllPageIds() throws IOException {
         List<Integer> pageIds = new ArrayList<>();
         FastIterator iter = pageIdToUrlMap.keys();
@@ -321,14 +1066,46 @@ public class InvertedIndexManager implements AutoCloseable {
 
     
     /**
-     * Get top keywords for a page (by frequency)
+     * Get the generation of the index, which goes up by one with every page indexed
+     */
+    @Override
+    public long getGeneration() {
+        return generation;
+    }
+    
+    /**
+     * Get the statistics of the indexed collection; saved to the database on each flush
+     */
+    @Override
+    public CollectionStats getCollectionStats() {
+        if (stats == null) {
+            stats = statsBuilder.build();
+        }
+        return stats;
+    }
+    
+    /**
+     * Get top keywords for a page (by frequency). Up to MAX_STORED_KEYWORDS are stored
+     * sorted when the page is indexed; only longer lists are sorted from the term vector.
      */
+    @Override
     public Map<String, Integer> getTopKeywords(int pageId, int limit) throws IOException {
-        PageInfo pageInfo = getPageInfo(pageId);
-        if (pageInfo == null || pageInfo.keywords == null || pageInfo.keywords.isEmpty()) {
+        Map<String, Integer> top = stored(topKeywordsMap.get(pageId));
+        if (top == null || top.isEmpty()) {
             return Collections.emptyMap();
         }
-        return sortByValueAndLimit(pageInfo.keywords, limit);
+        if (limit > top.size() && top.size() == MAX_STORED_KEYWORDS) {
+            return sortByValueAndLimit(getTermVector(pageId), limit);
+        }
+        return top.size() <= limit ? top : sortByValueAndLimit(top, limit);
+    }
+    
+    /**
+     * Get the frequency of every word of a page (title and body together)
+     */
+    public Map<String, Integer> getTermVector(int pageId) throws IOException {
+        Map<String, Integer> vector = stored(termVectorMap.get(pageId));
+        return vector == null ? Collections.emptyMap() : vector;
     }
     
     /**
@@ -353,102 +1130,96 @@ public class InvertedIndexManager implements AutoCloseable {
      * Search for a phrase in page body
      */
     public List<Integer> searchPhraseInBody(String phrase) throws IOException {
-        String[] words = phrase.toLowerCase().split(" ");
-        List<Integer> result = new ArrayList<>();
-        
-        // For each page, check if the phrase exists
-        FastIterator iter = pageIdToBodyWordsMap.keys();
-        Object key;
-        
-        while ((key = iter.next()) != null) {
-            if (key instanceof Integer) {
-                int pageId = (Integer) key;
-                List<String> pageWords = (List<String>) pageIdToBodyWordsMap.get(pageId);
-                
-                if (containsPhrase(pageWords, words)) {
-                    result.add(pageId);
-                }
-            }
-        }
-        
-        return result;
+        return pageIds(getBodyPhraseFrequencies(Arrays.asList(phrase.toLowerCase().split(" "))));
     }
     
     /**
      * Search for a phrase in page title
      */
     public List<Integer> searchPhraseInTitle(String phrase) throws IOException {
-        String[] words = phrase.toLowerCase().split(" ");
-        List<Integer> result = new ArrayList<>();
-        
-        // For each page, check if the phrase exists
-        FastIterator iter = pageIdToTitleWordsMap.keys();
-        Object key;
-        
-        while ((key = iter.next()) != null) {
-            if (key instanceof Integer) {
-                int pageId = (Integer) key;
-                List<String> pageWords = (List<String>) pageIdToTitleWordsMap.get(pageId);
-                
-                if (containsPhrase(pageWords, words)) {
-                    result.add(pageId);
-                }
-            }
+        return pageIds(getTitlePhraseFrequencies(Arrays.asList(phrase.toLowerCase().split(" "))));
+    }
+    
+    private static List<Integer> pageIds(PostingList postings) {
+        List<Integer> pageIds = new ArrayList<>(postings.size());
+        PostingList.Cursor cursor = postings.cursor();
+        while (cursor.next()) {
+            pageIds.add(cursor.doc());
         }
-        
-        return result;
+        return pageIds;
     }
     
     /**
-     * Helper method to check if a list of words contains a phrase
+     * Get the positions of a word in the body of each page
      */
-    private boolean containsPhrase(List<String> pageWords, String[] phraseWords) {
-        if (pageWords.size() < phraseWords.length) {
-            return false;
-        }
-        
-        for (int i = 0; i <= pageWords.size() - phraseWords.length; i++) {
-            boolean match = true;
-            for (int j = 0; j < phraseWords.length; j++) {
-                if (!pageWords.get(i + j).equals(phraseWords[j])) {
-                    match = false;
-                    break;
-                }
-            }
-            if (match) {
-                return true;
-            }
-        }
-        
-        return false;
+    @Override
+    public PostingList getBodyPositions(int wordId) throws IOException {
+        return postings(wordId, IndexSegment.BODY_POSITIONS);
+    }
+    
+    /**
+     * Get the positions of a word in the title of each page
+     */
+    @Override
+    public PostingList getTitlePositions(int wordId) throws IOException {
+        return postings(wordId, IndexSegment.TITLE_POSITIONS);
     }
     
     /**
      * Get postings list for a word from the body inverted index
      */
-    public Object getBodyPostings(int wordId) throws IOException {
-        return bodyInvertedIndex.get(wordId);
+    @Override
+    public PostingList getBodyPostings(int wordId) throws IOException {
+        return postings(wordId, IndexSegment.BODY);
     }
     
     /**
      * Get postings list for a word from the title inverted index
      */
-    public Object getTitlePostings(int wordId) throws IOException {
-        return titleInvertedIndex.get(wordId);
+    @Override
+    public PostingList getTitlePostings(int wordId) throws IOException {
+        return postings(wordId, IndexSegment.TITLE);
     }
-
-    public void sortForMaxTFForPageId(int pageId) throws IOException {
-        Map<String, Integer> map = getTopKeywords(pageId, 1);
-        Map.Entry<String, Integer> entry = map.entrySet().iterator().next();
-        System.out.println("maxTF of pageId:"+pageId + " is " + entry.getKey() + " " + entry.getValue());
-        maxTFForPageId.put(pageId, map);
+    
+    /**
+     * Helper method to merge the postings of a word in a field across all live segments
+     * and the buffer, leaving out deleted pages
+     */
+    private PostingList postings(int wordId, int field) throws IOException {
+        boolean positional = field >= IndexSegment.BODY_POSITIONS;
+        List<PostingList> lists = new ArrayList<>(segments.size() + 1);
+        List<BitSet> excluded = new ArrayList<>(segments.size() + 1);
+        for (Map.Entry<Integer, IndexSegment> entry : segments.entrySet()) {
+            PostingList list = entry.getValue().postings(wordId, field);
+            if (list.isEmpty()) continue;
+            BitSet deleted = segmentInfos.get(entry.getKey()).deleted;
+            if (!bufferedPages.isEmpty()) {
+                deleted = (BitSet) deleted.clone();
+                deleted.or(bufferedPages);
+            }
+            lists.add(list);
+            excluded.add(deleted);
+        }
+        Map<Integer, TreeMap<Integer, int[]>> buffer = field == IndexSegment.BODY || field == IndexSegment.BODY_POSITIONS ? bufferedBody : bufferedTitle;
+        if (buffer.containsKey(wordId)) {
+            lists.add(bufferedList(buffer, wordId, positional));
+            excluded.add(null);
+        }
+        
+        if (lists.isEmpty()) {
+            return IndexSegment.emptyList(field);
+        }
+        if (lists.size() == 1 && (excluded.get(0) == null || excluded.get(0).isEmpty())) {
+            return lists.get(0);
+        }
+        return PostingList.merge(lists.toArray(new PostingList[0]), excluded.toArray(new BitSet[0]), positional);
     }
 
+    @Override
     public int getMaxTFForPageId(int pageId) throws IOException {
-        Map<String, Integer> map = (Map<String, Integer>) maxTFForPageId.get(pageId);
+        Map<String, Integer> map = stored(maxTFForPageId.get(pageId));
         if (map != null){
             Map.Entry<String, Integer> entry = map.entrySet().iterator().next();
-//            System.out.println(entry.getValue());
             return entry.getValue();
         } else {
             return 1;
@@ -462,12 +1233,22 @@ public class InvertedIndexManager implements AutoCloseable {
     public void close() {
         if (recman != null) {
             try {
+                flush();
+                while (runningMerge != null) {
+                    installFinishedMerge(true);
+                }
+                for (IndexSegment segment : segments.values()) {
+                    segment.close();
+                }
                 recman.commit();
                 recman.close();
             } catch (IOException e) {
                 System.err.println("Error closing database: " + e.getMessage());
             }
         }
+        if (merger != null) {
+            merger.shutdown();
+        }
     }
 
 }
\ No newline at end of file
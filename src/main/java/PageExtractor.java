@@ -0,0 +1,129 @@
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.StreamParser;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * Streaming extraction of the title, keywords and links of an HTML page.
+ *
+ * Instead of building the whole jsoup Document and calling body().text(), the
+ * page is read with a {@link StreamParser}. Text is emitted as soon as each
+ * block-level element is closed, and the element is then removed, so the parse
+ * tree never holds more than the block being parsed. The input and whatever the
+ * handler collects are not bounded by this: the crawler buffers each body in
+ * full before parsing it, and keeps every token of the page. Before a block is
+ * emitted, the text that precedes it inside its enclosing blocks is emitted and
+ * removed, so words come out in document order.
+ */
+public class PageExtractor {
+
+    /**
+     * Receives the pieces of a page as they are parsed
+     */
+    public interface Handler {
+        void title(String title);
+        void titleToken(String token);
+        void bodyToken(String token);
+        void link(String absUrl);
+    }
+
+    private PageExtractor() { }
+
+    /**
+     * Parse the whole stream, passing the title, head tokens, body tokens and absolute link URLs to the handler
+     */
+    public static void extract(StreamParser parser, Handler handler) throws IOException {
+        boolean titleSeen = false;
+        Iterator<Element> elements = parser.iterator();
+        while (elements.hasNext()) {
+            Element el = elements.next();
+            switch (el.normalName()) {
+                case "a" -> {
+                    String href = el.absUrl("href");
+                    if (!href.isEmpty()) handler.link(href);
+                }
+                case "title" -> {
+                    String text = el.text();
+                    if (!titleSeen) {
+                        handler.title(text);
+                        titleSeen = true;
+                    }
+                    emitTokens(text, true, handler);
+                    el.remove();
+                }
+                case "head" -> {
+                    emitTokens(el.text(), true, handler);
+                    el.remove();
+                }
+                case "body" -> {
+                    // whatever is left is text directly inside the body
+                    emitTokens(el.text(), false, handler);
+                    parser.stop();
+                    return;
+                }
+                default -> {
+                    if (el.isBlock() && isInBody(el)) {
+                        emitPrecedingText(el, handler);
+                        emitTokens(el.text(), false, handler);
+                        el.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isInBody(Element el) {
+        for (Element parent = el.parent(); parent != null; parent = parent.parent()) {
+            switch (parent.normalName()) {
+                case "body":
+                    return true;
+                case "head":
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Emit and remove the text that comes before a block inside each of its enclosing elements, outermost first
+     */
+    private static void emitPrecedingText(Element el, Handler handler) {
+        Deque<Element> chain = new ArrayDeque<>();
+        for (Element node = el; node.parent() != null && !node.normalName().equals("body"); node = node.parent()) {
+            chain.push(node);
+        }
+        StringBuilder text = new StringBuilder();
+        for (Element node : chain) {
+            List<Node> preceding = new ArrayList<>(node.parent().childNodes().subList(0, node.siblingIndex()));
+            for (Node sibling : preceding) {
+                if (sibling instanceof TextNode textNode) {
+                    text.append(textNode.text());
+                } else if (sibling instanceof Element element) {
+                    text.append(element.normalName().equals("br") ? " " : element.text());
+                }
+                sibling.remove();
+            }
+            text.append(' ');
+        }
+        emitTokens(text.toString(), false, handler);
+    }
+
+    private static void emitTokens(String text, boolean title, Handler handler) {
+        StringTokenizer st = new StringTokenizer(text, " ");
+        while (st.hasMoreTokens()) {
+            if (title) {
+                handler.titleToken(st.nextToken());
+            } else {
+                handler.bodyToken(st.nextToken());
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+import java.util.Arrays;
+
+/**
+ * Immutable set of page IDs, compressed the way a Roaring bitmap is: the IDs are
+ * split by their high 16 bits into chunks of up to 65536, and each chunk is kept
+ * as a sorted array of its low 16 bits while it holds at most ARRAY_MAX pages, or
+ * as a bitmap of 1024 longs once it is denser.
+ *
+ * Unions and intersections go chunk by chunk, merging arrays or combining bitmaps
+ * a word (64 pages) at a time.
+ *
+ * Sets are built for the pages of phrases only. A term's title and body postings
+ * are walked side by side by its scorer instead, since turning them into a set
+ * would decode the whole lists that MaxScore and the skip tables jump over.
+ */
+public final class PageIdSet {
+    private static final int ARRAY_MAX = 4096;     // past this a bitmap (8 KB) is smaller than an array
+    private static final int BITMAP_WORDS = 1024;
+
+    public static final PageIdSet EMPTY = new PageIdSet(new char[0], new Container[0]);
+
+    private final char[] keys;                      // high 16 bits of the chunks, increasing
+    private final Container[] containers;
+    private final int cardinality;
+
+    private PageIdSet(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int n = 0;
+        for (Container container : containers) {
+            n += container.cardinality();
+        }
+        this.cardinality = n;
+    }
+
+    /**
+     * The pages of a posting list
+     */
+    public static PageIdSet of(PostingList postings) {
+        Builder builder = new Builder();
+        PostingList.Cursor cursor = postings.cursor();
+        while (cursor.next()) {
+            builder.add(cursor.doc());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Number of pages in the set
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    public boolean contains(int pageId) {
+        int i = Arrays.binarySearch(keys, (char) (pageId >>> 16));
+        return i >= 0 && containers[i].contains((char) pageId);
+    }
+
+    /**
+     * Smallest page ID in the set that is at least from, or NO_MORE_DOCS if there is none
+     */
+    public int nextPage(int from) {
+        from = Math.max(from, 0);
+        int i = Arrays.binarySearch(keys, (char) (from >>> 16));
+        if (i >= 0) {
+            int low = containers[i].next(from & 0xFFFF);
+            if (low >= 0) return keys[i] << 16 | low;
+            i++;
+        } else {
+            i = -i - 1;
+        }
+        return i < keys.length ? keys[i] << 16 | containers[i].next(0) : PostingList.NO_MORE_DOCS;
+    }
+
+    /**
+     * Pages in both sets
+     */
+    public PageIdSet and(PageIdSet other) {
+        int capacity = Math.min(keys.length, other.keys.length);
+        char[] andKeys = new char[capacity];
+        Container[] andContainers = new Container[capacity];
+        int n = 0;
+        for (int i = 0, j = 0; i < keys.length && j < other.keys.length; ) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container container = containers[i].and(other.containers[j]);
+                if (container.cardinality() > 0) {
+                    andKeys[n] = keys[i];
+                    andContainers[n++] = container;
+                }
+                i++;
+                j++;
+            }
+        }
+        return new PageIdSet(Arrays.copyOf(andKeys, n), Arrays.copyOf(andContainers, n));
+    }
+
+    /**
+     * Pages in either set
+     */
+    public PageIdSet or(PageIdSet other) {
+        int capacity = keys.length + other.keys.length;
+        char[] orKeys = new char[capacity];
+        Container[] orContainers = new Container[capacity];
+        int n = 0;
+        int i = 0, j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            if (j == other.keys.length || (i < keys.length && keys[i] < other.keys[j])) {
+                orKeys[n] = keys[i];
+                orContainers[n++] = containers[i++];        // containers are immutable, so shared
+            } else if (i == keys.length || keys[i] > other.keys[j]) {
+                orKeys[n] = other.keys[j];
+                orContainers[n++] = other.containers[j++];
+            } else {
+                orKeys[n] = keys[i];
+                orContainers[n++] = containers[i++].or(other.containers[j++]);
+            }
+        }
+        return new PageIdSet(Arrays.copyOf(orKeys, n), Arrays.copyOf(orContainers, n));
+    }
+
+    /**
+     * Builds a set from page IDs added in increasing order
+     */
+    public static final class Builder {
+        private char[] keys = new char[4];
+        private Container[] containers = new Container[4];
+        private int size;
+        private int key = -1;
+        private char[] values = new char[64];       // low bits of the chunk being added
+        private int count;
+        private int last = -1;
+
+        public Builder add(int pageId) {
+            if (pageId <= last) {
+                throw new IllegalArgumentException("Page " + pageId + " added after page " + last);
+            }
+            last = pageId;
+            if (pageId >>> 16 != key) {
+                flush();
+                key = pageId >>> 16;
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = (char) pageId;
+            return this;
+        }
+
+        public PageIdSet build() {
+            flush();
+            return new PageIdSet(Arrays.copyOf(keys, size), Arrays.copyOf(containers, size));
+        }
+
+        private void flush() {
+            if (count == 0) return;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                containers = Arrays.copyOf(containers, size * 2);
+            }
+            keys[size] = (char) key;
+            containers[size++] = Container.of(Arrays.copyOf(values, count));
+            count = 0;
+        }
+    }
+
+    /**
+     * The low 16 bits of the pages in one chunk
+     */
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char low);
+
+        /** Smallest value that is at least low, or -1 if there is none */
+        abstract int next(int low);
+
+        abstract Container and(Container other);
+
+        abstract Container or(Container other);
+
+        /** A container of sorted values, as an array or a bitmap by how many there are */
+        static Container of(char[] sorted) {
+            return sorted.length <= ARRAY_MAX ? new ArrayContainer(sorted) : BitmapContainer.of(sorted);
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        private final char[] values;    // sorted
+
+        ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, low) >= 0;
+        }
+
+        @Override
+        int next(int low) {
+            int i = Arrays.binarySearch(values, (char) low);
+            if (i < 0) i = -i - 1;
+            return i < values.length ? values[i] : -1;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[values.length];
+            int n = 0;
+            if (other instanceof ArrayContainer array) {
+                char[] b = array.values;
+                for (int i = 0, j = 0; i < values.length && j < b.length; ) {
+                    if (values[i] < b[j]) {
+                        i++;
+                    } else if (values[i] > b[j]) {
+                        j++;
+                    } else {
+                        result[n++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (char value : values) {
+                    if (other.contains(value)) result[n++] = value;
+                }
+            }
+            return new ArrayContainer(Arrays.copyOf(result, n));
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            char[] b = ((ArrayContainer) other).values;
+            char[] result = new char[values.length + b.length];
+            int n = 0;
+            int i = 0, j = 0;
+            while (i < values.length && j < b.length) {
+                if (values[i] < b[j]) {
+                    result[n++] = values[i++];
+                } else if (values[i] > b[j]) {
+                    result[n++] = b[j++];
+                } else {
+                    result[n++] = values[i++];
+                    j++;
+                }
+            }
+            while (i < values.length) result[n++] = values[i++];
+            while (j < b.length) result[n++] = b[j++];
+            return Container.of(Arrays.copyOf(result, n));
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private final int cardinality;
+
+        private BitmapContainer(long[] words) {
+            this.words = words;
+            int n = 0;
+            for (long word : words) {
+                n += Long.bitCount(word);
+            }
+            this.cardinality = n;
+        }
+
+        static BitmapContainer of(char[] values) {
+            long[] words = new long[BITMAP_WORDS];
+            for (char value : values) {
+                words[value >>> 6] |= 1L << value;
+            }
+            return new BitmapContainer(words);
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        int next(int low) {
+            int w = low >>> 6;
+            long word = words[w] & (-1L << low);
+            while (true) {
+                if (word != 0) return w * 64 + Long.numberOfTrailingZeros(word);
+                if (++w == BITMAP_WORDS) return -1;
+                word = words[w];
+            }
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            long[] b = ((BitmapContainer) other).words;
+            long[] result = new long[BITMAP_WORDS];
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                result[w] = words[w] & b[w];
+            }
+            BitmapContainer bitmap = new BitmapContainer(result);
+            return bitmap.cardinality <= ARRAY_MAX ? new ArrayContainer(bitmap.toArray()) : bitmap;
+        }
+
+        @Override
+        Container or(Container other) {
+            long[] result = words.clone();
+            if (other instanceof ArrayContainer array) {
+                for (char value : array.values) {
+                    result[value >>> 6] |= 1L << value;
+                }
+            } else {
+                long[] b = ((BitmapContainer) other).words;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    result[w] |= b[w];
+                }
+            }
+            return new BitmapContainer(result);
+        }
+
+        private char[] toArray() {
+            char[] values = new char[cardinality];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                for (long word = words[w]; word != 0; word &= word - 1) {
+                    values[n++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+                }
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Forward-only iterator over the pages matching part of a query, in increasing page
+ * ID order. A query is run as a tree of these (see {@link SearchEngine}): postings and
+ * page sets at the leaves, combined by {@link #and}, {@link #or} and {@link #andNot}.
+ *
+ * Iterators move with advance(target) rather than one page at a time, so a
+ * conjunction jumps each of its iterators to the page the rarest one is on, and the
+ * pages outside the intersection are skipped over rather than visited.
+ */
+public abstract class PageIterator {
+    public static final int NO_MORE_DOCS = PostingList.NO_MORE_DOCS;
+
+    public static final PageIterator EMPTY = new PageIterator() {
+        @Override public int doc()               { return NO_MORE_DOCS; }
+        @Override public int advance(int target) { return NO_MORE_DOCS; }
+        @Override public long cost()             { return 0; }
+    };
+
+    /**
+     * Current page, -1 before the first and NO_MORE_DOCS after the last
+     */
+    public abstract int doc();
+
+    /**
+     * Move to the first page that is at least target and return it, or NO_MORE_DOCS;
+     * stays on the current page if it is already past target
+     */
+    public abstract int advance(int target);
+
+    /**
+     * Most pages the iterator can match, to put the rarest first in a conjunction
+     */
+    public abstract long cost();
+
+    /**
+     * Move to the next page and return it, or NO_MORE_DOCS
+     */
+    public int nextDoc() {
+        int doc = doc();
+        return doc == NO_MORE_DOCS ? doc : advance(doc + 1);
+    }
+
+    /**
+     * Pages in any of the posting lists
+     */
+    public static PageIterator of(PostingList... lists) {
+        return of(0, lists);
+    }
+
+    /**
+     * Pages in any of the posting lists, from page from on: the postings before it are
+     * skipped over, so the first move of the iterator must be advance(from) or further
+     */
+    public static PageIterator of(int from, PostingList... lists) {
+        List<PostingList> nonEmpty = new ArrayList<>();
+        for (PostingList list : lists) {
+            if (!list.isEmpty()) nonEmpty.add(list);
+        }
+        return nonEmpty.isEmpty() ? EMPTY : new Postings(nonEmpty, from);
+    }
+
+    public static PageIterator of(PageIdSet pages) {
+        return pages.isEmpty() ? EMPTY : new Pages(pages);
+    }
+
+    /**
+     * Pages matched by every iterator
+     */
+    public static PageIterator and(List<PageIterator> iterators) {
+        if (iterators.isEmpty()) return EMPTY;
+        if (iterators.size() == 1) return iterators.get(0);
+        List<PageIterator> rarestFirst = new ArrayList<>(iterators);
+        rarestFirst.sort(Comparator.comparingLong(PageIterator::cost));
+        return rarestFirst.get(0).cost() == 0 ? EMPTY : new Conjunction(rarestFirst);
+    }
+
+    /**
+     * Pages matched by any iterator
+     */
+    public static PageIterator or(List<PageIterator> iterators) {
+        List<PageIterator> nonEmpty = new ArrayList<>();
+        for (PageIterator iterator : iterators) {
+            if (iterator.cost() > 0) nonEmpty.add(iterator);
+        }
+        if (nonEmpty.isEmpty()) return EMPTY;
+        return nonEmpty.size() == 1 ? nonEmpty.get(0) : new Disjunction(nonEmpty);
+    }
+
+    /**
+     * Pages matched by include but not by exclude
+     */
+    public static PageIterator andNot(PageIterator include, PageIterator exclude) {
+        if (include.cost() == 0 || exclude.cost() == 0) return include;
+        return new Exclusion(include, exclude);
+    }
+
+    private static final class Postings extends PageIterator {
+        private final PostingList.Cursor[] cursors;
+        private final long cost;
+        private int doc = -1;
+
+        Postings(List<PostingList> lists, int from) {
+            cursors = new PostingList.Cursor[lists.size()];
+            long pages = 0;
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = lists.get(i).cursor(from);
+                pages += lists.get(i).size();
+            }
+            cost = pages;
+        }
+
+        @Override
+        public int doc() {
+            return doc;
+        }
+
+        @Override
+        public int advance(int target) {
+            if (doc >= target) return doc;
+            int min = NO_MORE_DOCS;
+            for (PostingList.Cursor cursor : cursors) {
+                cursor.advance(target);
+                min = Math.min(min, cursor.doc());
+            }
+            return doc = min;
+        }
+
+        @Override
+        public long cost() {
+            return cost;
+        }
+    }
+
+    private static final class Pages extends PageIterator {
+        private final PageIdSet pages;
+        private int doc = -1;
+
+        Pages(PageIdSet pages) {
+            this.pages = pages;
+        }
+
+        @Override
+        public int doc() {
+            return doc;
+        }
+
+        @Override
+        public int advance(int target) {
+            if (doc >= target) return doc;
+            return doc = pages.nextPage(target);
+        }
+
+        @Override
+        public long cost() {
+            return pages.cardinality();
+        }
+    }
+
+    private static final class Conjunction extends PageIterator {
+        private final PageIterator[] iterators;     // rarest first
+        private int doc = -1;
+
+        Conjunction(List<PageIterator> rarestFirst) {
+            iterators = rarestFirst.toArray(new PageIterator[0]);
+        }
+
+        @Override
+        public int doc() {
+            return doc;
+        }
+
+        @Override
+        public int advance(int target) {
+            if (doc >= target) return doc;
+            int candidate = iterators[0].advance(target);
+            for (int i = 1; i < iterators.length && candidate != NO_MORE_DOCS; ) {
+                int other = iterators[i].advance(candidate);
+                if (other == candidate) {
+                    i++;
+                } else {
+                    // the rarest iterator leads again from where this one landed
+                    candidate = iterators[0].advance(other);
+                    i = 1;
+                }
+            }
+            return doc = candidate;
+        }
+
+        @Override
+        public long cost() {
+            return iterators[0].cost();
+        }
+    }
+
+    private static final class Disjunction extends PageIterator {
+        private final PageIterator[] iterators;
+        private final long cost;
+        private int doc = -1;
+
+        Disjunction(List<PageIterator> list) {
+            iterators = list.toArray(new PageIterator[0]);
+            long pages = 0;
+            for (PageIterator iterator : iterators) {
+                pages += iterator.cost();
+            }
+            cost = pages;
+        }
+
+        @Override
+        public int doc() {
+            return doc;
+        }
+
+        @Override
+        public int advance(int target) {
+            if (doc >= target) return doc;
+            int min = NO_MORE_DOCS;
+            for (PageIterator iterator : iterators) {
+                min = Math.min(min, iterator.advance(target));
+            }
+            return doc = min;
+        }
+
+        @Override
+        public long cost() {
+            return cost;
+        }
+    }
+
+    private static final class Exclusion extends PageIterator {
+        private final PageIterator include;
+        private final PageIterator exclude;
+        private int doc = -1;
+
+        Exclusion(PageIterator include, PageIterator exclude) {
+            this.include = include;
+            this.exclude = exclude;
+        }
+
+        @Override
+        public int doc() {
+            return doc;
+        }
+
+        @Override
+        public int advance(int target) {
+            if (doc >= target) return doc;
+            int candidate = include.advance(target);
+            while (candidate != NO_MORE_DOCS && exclude.advance(candidate) == candidate) {
+                candidate = include.advance(candidate + 1);
+            }
+            return doc = candidate;
+        }
+
+        @Override
+        public long cost() {
+            return include.cost();
+        }
+    }
+}
@@ -0,0 +1,463 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Immutable posting list of one term, stored as a compact byte array (or a
+ * region of a mapped file, see {@link IndexSnapshot}).
+ *
+ * Postings are kept sorted by page ID. Each posting is written as the gap to the
+ * previous page ID followed by the term frequency, both as variable-byte integers
+ * (7 bits per byte, high bit set on all but the last byte). A positional list also
+ * writes the term's positions in the page after the frequency, again as gaps.
+ *
+ *   list    := size flags posting*
+ *   posting := docGap freq [posGap * freq]
+ *
+ * Lists are read through a {@link Cursor}, which decodes one posting at a time
+ * into primitive fields, so walking a list allocates nothing per posting. A cursor
+ * can also start near a page in the middle of the list (see {@link #cursor(int)}),
+ * through a skip table built in memory the first time one is asked for.
+ */
+public final class PostingList {
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    private static final int FLAG_POSITIONS = 1;
+    private static final int SKIP_INTERVAL = 128;   // postings per entry of the skip table
+
+    public static final PostingList EMPTY = new Builder(false).build();
+    public static final PostingList EMPTY_POSITIONAL = new Builder(true).build();
+
+    private final ByteBuffer data;  // the encoded list, from index 0 to its limit
+    private final int size;
+    private final boolean positional;
+    private final int start;        // offset of the first posting in data
+    private volatile int[] skips;   // see skips(), null until first needed
+
+    private PostingList(ByteBuffer data) {
+        this.data = data;
+        int[] offset = {0};
+        this.size = readVInt(data, offset);
+        this.positional = (readVInt(data, offset) & FLAG_POSITIONS) != 0;
+        this.start = offset[0];
+    }
+
+    /**
+     * Wrap an encoded list as read back from the index
+     */
+    public static PostingList decode(byte[] data) {
+        return new PostingList(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Wrap an encoded list that fills the buffer from index 0 to its limit, without copying it
+     */
+    public static PostingList decode(ByteBuffer data) {
+        return new PostingList(data);
+    }
+
+    /**
+     * The encoded form of the list, as stored in the index
+     */
+    public byte[] bytes() {
+        if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.limit()) {
+            return data.array();
+        }
+        byte[] bytes = new byte[data.limit()];
+        data.get(0, bytes);
+        return bytes;
+    }
+
+    /**
+     * Length of the encoded list in bytes
+     */
+    public int sizeInBytes() {
+        return data.limit();
+    }
+
+    /**
+     * Number of pages in the list (the document frequency of the term)
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean hasPositions() {
+        return positional;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * A cursor that has skipped ahead to near target without decoding the postings
+     * before it, so that its first advance(target) reads at most SKIP_INTERVAL
+     * postings. Until that advance its doc() is a page before target.
+     */
+    public Cursor cursor(int target) {
+        Cursor cursor = new Cursor();
+        if (target > 0 && size > SKIP_INTERVAL) {
+            cursor.skipTo(skips(), target);
+        }
+        return cursor;
+    }
+
+    /**
+     * Skip table of the list: for every SKIP_INTERVAL-th posting, the page ID before it
+     * and the offset of its page gap, side by side. Built by decoding the list once.
+     */
+    private int[] skips() {
+        int[] table = skips;
+        if (table == null) {
+            table = new int[2 * ((size + SKIP_INTERVAL - 1) / SKIP_INTERVAL)];
+            Cursor cursor = new Cursor();
+            for (int i = 0; i < size; i++) {
+                if (i % SKIP_INTERVAL == 0) {
+                    cursor.skipPositions();
+                    table[2 * (i / SKIP_INTERVAL)]     = cursor.doc;
+                    table[2 * (i / SKIP_INTERVAL) + 1] = cursor.offset[0];
+                }
+                cursor.next();
+            }
+            // lists are shared between threads; building the table twice does no harm
+            skips = table;
+        }
+        return table;
+    }
+
+    /**
+     * Frequency of the term in a page, or 0 if the page is not in the list
+     */
+    public int freq(int pageId) {
+        Cursor cursor = cursor();
+        return cursor.advance(pageId) && cursor.doc() == pageId ? cursor.freq() : 0;
+    }
+
+    /**
+     * Copy of the list with the posting of a page added or replaced
+     */
+    public PostingList with(int pageId, int freq) {
+        if (positional) throw new IllegalStateException("Positional list needs positions");
+        return merge(pageId, freq, null);
+    }
+
+    /**
+     * Copy of a positional list with the positions of a page added or replaced
+     */
+    public PostingList with(int pageId, int[] positions) {
+        return merge(pageId, positions.length, positions);
+    }
+
+    /**
+     * Copy of the list without the posting of a page (the list itself if it has none)
+     */
+    public PostingList without(int pageId) {
+        if (freq(pageId) == 0) return this;
+        return merge(pageId, 0, null);
+    }
+
+    private PostingList merge(int pageId, int freq, int[] positions) {
+        Builder builder = new Builder(positional);
+        int[] buffer = new int[0];
+        boolean written = freq == 0;    // nothing to insert when removing
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            int doc = cursor.doc();
+            if (!written && doc >= pageId) {
+                builder.add(pageId, freq, positions);
+                written = true;
+            }
+            if (doc == pageId) continue;
+            if (positional) {
+                if (buffer.length < cursor.freq()) buffer = new int[cursor.freq()];
+                cursor.positions(buffer);
+            }
+            builder.add(doc, cursor.freq(), buffer);
+        }
+        if (!written) {
+            builder.add(pageId, freq, positions);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Merge lists that have no page in common into one list, leaving out the pages in
+     * excluded[i] (may be null) from lists[i]. All lists must be positional or none.
+     */
+    public static PostingList merge(PostingList[] lists, BitSet[] excluded, boolean positional) {
+        Cursor[] cursors = new Cursor[lists.length];
+        for (int i = 0; i < lists.length; i++) {
+            cursors[i] = lists[i].cursor();
+            nextIncluded(cursors[i], excluded[i]);
+        }
+        Builder builder = new Builder(positional);
+        int[] buffer = new int[16];
+        while (true) {
+            int min = -1;
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i].doc() != NO_MORE_DOCS && (min < 0 || cursors[i].doc() < cursors[min].doc())) {
+                    min = i;
+                }
+            }
+            if (min < 0) {
+                return builder.build();
+            }
+            Cursor cursor = cursors[min];
+            if (positional) {
+                if (buffer.length < cursor.freq()) buffer = new int[cursor.freq()];
+                cursor.positions(buffer);
+            }
+            builder.add(cursor.doc(), cursor.freq(), buffer);
+            nextIncluded(cursor, excluded[min]);
+        }
+    }
+
+    /**
+     * Match a phrase by intersecting the position lists of its words (in phrase order):
+     * the phrase occurs at p if word i occurs at p + i for every i.
+     * The result is a posting list of the phrase frequency in each page.
+     */
+    public static PostingList phraseFrequencies(PostingList[] positionLists) {
+        Builder result = new Builder(false);
+        Cursor[] cursors = new Cursor[positionLists.length];
+        for (int i = 0; i < cursors.length; i++) {
+            if (positionLists[i].isEmpty()) {
+                return result.build();
+            }
+            cursors[i] = positionLists[i].cursor();
+        }
+        if (cursors.length == 0) {
+            return result.build();
+        }
+
+        int[][] positions = new int[cursors.length][16];
+        int[] counts = new int[cursors.length];
+        int pageId = 0;
+        while (true) {
+            // find the next page that contains every word
+            boolean inAll = true;
+            for (Cursor cursor : cursors) {
+                if (!cursor.advance(pageId)) {
+                    return result.build();
+                }
+                if (cursor.doc() > pageId) {
+                    pageId = cursor.doc();
+                    inAll = false;
+                }
+            }
+            if (!inAll) continue;
+
+            for (int i = 0; i < cursors.length; i++) {
+                if (positions[i].length < cursors[i].freq()) {
+                    positions[i] = new int[cursors[i].freq()];
+                }
+                counts[i] = cursors[i].positions(positions[i]);
+            }
+            int count = 0;
+            for (int p = 0; p < counts[0]; p++) {
+                int start = positions[0][p];
+                boolean match = true;
+                for (int i = 1; i < cursors.length; i++) {
+                    if (Arrays.binarySearch(positions[i], 0, counts[i], start + i) < 0) {
+                        match = false;
+                        break;
+                    }
+                }
+                if (match) count++;
+            }
+            if (count > 0) {
+                result.add(pageId, count);
+            }
+            pageId++;
+        }
+    }
+
+    private static void nextIncluded(Cursor cursor, BitSet excluded) {
+        while (cursor.next()) {
+            if (excluded == null || !excluded.get(cursor.doc())) return;
+        }
+    }
+
+    /**
+     * Forward-only iterator over the postings of a list. A new cursor is positioned
+     * before the first posting.
+     */
+    public final class Cursor {
+        private final int[] offset = {start};
+        private int remaining = size;
+        private int doc = -1;
+        private int freq;
+        private int unreadPositions;
+
+        /**
+         * Move to the next posting; false when the list is exhausted
+         */
+        public boolean next() {
+            skipPositions();
+            if (remaining == 0) {
+                doc = NO_MORE_DOCS;
+                freq = 0;
+                return false;
+            }
+            remaining--;
+            doc = (doc < 0 ? 0 : doc) + readVInt(data, offset);
+            freq = readVInt(data, offset);
+            if (positional) unreadPositions = freq;
+            return true;
+        }
+
+        /**
+         * Move to the first posting with a page ID of at least target; false when there is none
+         */
+        public boolean advance(int target) {
+            if (doc >= target) return doc != NO_MORE_DOCS;
+            while (next()) {
+                if (doc >= target) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Page ID of the current posting, -1 before the first and NO_MORE_DOCS after the last
+         */
+        public int doc() {
+            return doc;
+        }
+
+        public int freq() {
+            return freq;
+        }
+
+        /**
+         * Read the positions of the current posting into buffer (at least freq() long) and
+         * return how many were read. Positions can be read once per posting.
+         */
+        public int positions(int[] buffer) {
+            int n = unreadPositions;
+            int position = 0;
+            for (int i = 0; i < n; i++) {
+                position += readVInt(data, offset);
+                buffer[i] = position;
+            }
+            unreadPositions = 0;
+            return n;
+        }
+
+        private void skipPositions() {
+            for (; unreadPositions > 0; unreadPositions--) {
+                readVInt(data, offset);
+            }
+        }
+
+        /**
+         * Jump to the last entry of the skip table before target, if it is ahead of the cursor
+         */
+        private void skipTo(int[] table, int target) {
+            int low = 0, high = table.length / 2 - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (table[2 * mid] < target) low = mid;
+                else high = mid - 1;
+            }
+            if (low * SKIP_INTERVAL <= size - remaining) return;
+            doc = table[2 * low];
+            offset[0] = table[2 * low + 1];
+            remaining = size - low * SKIP_INTERVAL;
+            freq = 0;
+            unreadPositions = 0;
+        }
+    }
+
+    /**
+     * Encodes postings added in increasing page ID order
+     */
+    public static final class Builder {
+        private final boolean positional;
+        private byte[] buffer = new byte[32];
+        private int length;
+        private int size;
+        private int lastDoc;
+
+        public Builder(boolean positional) {
+            this.positional = positional;
+        }
+
+        public Builder add(int pageId, int freq) {
+            if (positional) throw new IllegalStateException("Positional list needs positions");
+            return add(pageId, freq, null);
+        }
+
+        public Builder add(int pageId, int[] positions) {
+            return add(pageId, positions.length, positions);
+        }
+
+        /**
+         * Add a posting whose positions are the first freq entries of positions (ignored unless positional)
+         */
+        public Builder add(int pageId, int freq, int[] positions) {
+            if (size > 0 && pageId <= lastDoc) {
+                throw new IllegalArgumentException("Page " + pageId + " added after page " + lastDoc);
+            }
+            writeVInt(size == 0 ? pageId : pageId - lastDoc);
+            writeVInt(freq);
+            if (positional) {
+                int previous = 0;
+                for (int i = 0; i < freq; i++) {
+                    writeVInt(positions[i] - previous);
+                    previous = positions[i];
+                }
+            }
+            lastDoc = pageId;
+            size++;
+            return this;
+        }
+
+        public PostingList build() {
+            byte[] header = new byte[10];
+            int[] headerLength = {0};
+            PostingList.writeVInt(header, headerLength, size);
+            PostingList.writeVInt(header, headerLength, positional ? FLAG_POSITIONS : 0);
+
+            byte[] data = new byte[headerLength[0] + length];
+            System.arraycopy(header, 0, data, 0, headerLength[0]);
+            System.arraycopy(buffer, 0, data, headerLength[0], length);
+            return decode(data);
+        }
+
+        private void writeVInt(int value) {
+            if (length + 5 > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + 5));
+            }
+            int[] end = {length};
+            PostingList.writeVInt(buffer, end, value);
+            length = end[0];
+        }
+    }
+
+    private static void writeVInt(byte[] out, int[] offset, int value) {
+        int i = offset[0];
+        while ((value & ~0x7F) != 0) {
+            out[i++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[i++] = (byte) value;
+        offset[0] = i;
+    }
+
+    private static int readVInt(ByteBuffer in, int[] offset) {
+        int i = offset[0];
+        byte b = in.get(i++);
+        int value = b & 0x7F;
+        for (int shift = 7; b < 0; shift += 7) {
+            b = in.get(i++);
+            value |= (b & 0x7F) << shift;
+        }
+        offset[0] = i;
+        return value;
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of posting lists shared by all queries, bounded by the bytes of the lists it holds.
+ *
+ * The lists are spread over SEGMENTS independently locked segments by word ID, each
+ * with an equal part of the budget and evicting its least recently used lists first,
+ * so concurrent queries rarely wait for each other. A list bigger than a segment's
+ * budget is never cached.
+ *
+ * Every lookup passes the generation of the index it reads (see
+ * {@link SearchIndex#getGeneration}). When a newer generation is seen the whole cache
+ * is dropped; lookups for an older generation, from queries still running against the
+ * index as it was, load their lists without caching them.
+ */
+public class PostingsCache {
+    private static final int SEGMENTS = 16;
+    private static final int ENTRY_OVERHEAD_BYTES = 96;    // estimated map entry, key and list objects
+
+    /**
+     * Loads a list on a cache miss
+     */
+    public interface Loader {
+        PostingList load(int wordId, int field) throws IOException;
+    }
+
+    private final long maxBytes;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private volatile long generation = Long.MIN_VALUE;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public PostingsCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    /**
+     * Get the list of a word in a field (see {@link IndexSegment}) from the cache, or load it
+     */
+    public PostingList get(int wordId, int field, long indexGeneration, Loader loader) throws IOException {
+        if (indexGeneration > generation) {
+            invalidate(indexGeneration);
+        }
+        long key = (long) wordId * IndexSegment.FIELDS + field;
+        Segment segment = segments[Math.floorMod(wordId, SEGMENTS)];
+        if (indexGeneration == generation) {
+            PostingList list = segment.get(key);
+            if (list != null) {
+                hits.increment();
+                return list;
+            }
+        }
+        misses.increment();
+        PostingList list = loader.load(wordId, field);
+        segment.put(key, list, indexGeneration);
+        return list;
+    }
+
+    /**
+     * Drop every list, because the index is now at a newer generation
+     */
+    private synchronized void invalidate(long indexGeneration) {
+        if (indexGeneration <= generation) return;
+        // set first, so a list of the old generation loaded meanwhile is either cleared or not stored
+        generation = indexGeneration;
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Estimated bytes of the cached lists
+     */
+    public long sizeInBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        long lookups = hits() + misses();
+        return String.format("postings cache: %d hits, %d misses (%.1f%% hits), %d evictions, %d of %d KB used",
+                hits(), misses(), lookups == 0 ? 0.0 : 100.0 * hits() / lookups, evictions(),
+                sizeInBytes() / 1024, maxBytes / 1024);
+    }
+
+    private static long sizeOf(PostingList list) {
+        return ENTRY_OVERHEAD_BYTES + list.sizeInBytes();
+    }
+
+    /**
+     * One lock's worth of the cache: an access-ordered map, least recently used first
+     */
+    private final class Segment {
+        private final long maxBytes;
+        private final LinkedHashMap<Long, PostingList> lists = new LinkedHashMap<>(64, 0.75f, true);
+        private long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized PostingList get(long key) {
+            return lists.get(key);
+        }
+
+        synchronized void put(long key, PostingList list, long indexGeneration) {
+            long size = sizeOf(list);
+            if (size > maxBytes || indexGeneration != generation) return;
+            PostingList old = lists.put(key, list);
+            if (old != null) {
+                bytes -= sizeOf(old);
+            }
+            bytes += size;
+            Iterator<Map.Entry<Long, PostingList>> eldest = lists.entrySet().iterator();
+            while (bytes > maxBytes) {
+                PostingList evicted = eldest.next().getValue();
+                eldest.remove();
+                bytes -= sizeOf(evicted);
+                evictions.increment();
+            }
+        }
+
+        synchronized void clear() {
+            lists.clear();
+            bytes = 0;
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A search query parsed into a tree of words, phrases and boolean clauses, with the
+ * words already stemmed and the stop words left out.
+ *
+ *   query   := clause*
+ *   clause  := ['+' | '-'] or
+ *   or      := and (OR and)*
+ *   and     := unary (AND unary)*
+ *   unary   := NOT unary | primary
+ *   primary := [title: | body:] ( '(' query ')' | '"' words '"' | word )
+ *
+ * Clauses side by side are optional: a page has to match one of them, and pages
+ * matching more of them score higher. A '+' makes a clause required and a '-'
+ * excludes the pages matching it. AND, OR and NOT must be upper case; in lower case
+ * they are stop words. title: and body: match a word, phrase or group in that field
+ * only. A quoted phrase on its own is required, unless no page contains it at all.
+ *
+ * See {@link QueryParser} for how a query is read.
+ */
+public sealed interface Query permits Query.Term, Query.Phrase, Query.Bool {
+
+    enum Field { ANY, BODY, TITLE }
+
+    /**
+     * A stemmed word
+     */
+    record Term(String word, Field field) implements Query {
+        @Override
+        public String toString() {
+            return prefix(field) + word;
+        }
+    }
+
+    /**
+     * Stemmed words at consecutive positions. A lenient phrase (a quoted phrase on its
+     * own in the query) is ignored when no page contains it.
+     */
+    record Phrase(List<String> words, Field field, boolean lenient) implements Query {
+        @Override
+        public String toString() {
+            return prefix(field) + "\"" + String.join(" ", words) + "\"";
+        }
+    }
+
+    /**
+     * Pages matching every must clause, none of the mustNot clauses and, without must
+     * clauses, at least one should clause. Without must or should clauses nothing matches.
+     */
+    record Bool(List<Query> must, List<Query> should, List<Query> mustNot) implements Query {
+        /**
+         * The canonical form of the query: the clauses of each group sorted, so queries
+         * that differ only in the order of their clauses print the same
+         */
+        @Override
+        public String toString() {
+            List<String> clauses = new ArrayList<>();
+            for (Query clause : must) {
+                boolean bare = clause instanceof Phrase phrase && phrase.lenient();
+                clauses.add((bare ? "" : "+") + nested(clause));
+            }
+            for (Query clause : should) {
+                clauses.add(nested(clause));
+            }
+            for (Query clause : mustNot) {
+                clauses.add("-" + nested(clause));
+            }
+            clauses.sort(null);
+            return String.join(" ", clauses);
+        }
+
+        private static String nested(Query clause) {
+            return clause instanceof Bool ? "(" + clause + ")" : clause.toString();
+        }
+    }
+
+    private static String prefix(Field field) {
+        return switch (field) {
+            case ANY -> "";
+            case BODY -> "body:";
+            case TITLE -> "title:";
+        };
+    }
+
+    /**
+     * The words and phrases of a query that add to the score of a page: all of them
+     * except those under a NOT or '-'
+     */
+    static List<Query> scoredClauses(Query query) {
+        List<Query> sink = new ArrayList<>();
+        collectScored(query, sink);
+        return sink;
+    }
+
+    private static void collectScored(Query query, List<Query> sink) {
+        if (query instanceof Bool bool) {
+            for (Query clause : bool.must()) collectScored(clause, sink);
+            for (Query clause : bool.should()) collectScored(clause, sink);
+        } else {
+            sink.add(query);
+        }
+    }
+
+    /**
+     * Every word and phrase of a query, including the excluded ones
+     */
+    static List<Query> allClauses(Query query) {
+        List<Query> sink = new ArrayList<>();
+        collectAll(query, sink);
+        return sink;
+    }
+
+    private static void collectAll(Query query, List<Query> sink) {
+        if (query instanceof Bool bool) {
+            for (List<Query> clauses : Arrays.asList(bool.must(), bool.should(), bool.mustNot())) {
+                for (Query clause : clauses) collectAll(clause, sink);
+            }
+        } else {
+            sink.add(query);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Reads a {@link Query} from what was typed in the search box: splits it into tokens,
+ * then builds the tree from them by recursive descent, one method per rule of the
+ * grammar.
+ *
+ * Parsing never fails: a stray parenthesis or operator is skipped, a missing closing
+ * parenthesis is assumed at the end, and a quote without a closing quote is part of
+ * a word.
+ */
+public final class QueryParser {
+    private enum Kind { WORD, PHRASE, OPEN, CLOSE, PLUS, MINUS, AND, OR, NOT, FIELD }
+
+    private record Token(Kind kind, String text) { }
+
+    private final List<Token> tokens = new ArrayList<>();
+    private final UnaryOperator<String> analyzer;
+    private int pos;
+
+    private QueryParser(String raw, UnaryOperator<String> analyzer) {
+        this.analyzer = analyzer;
+        tokenize(raw);
+    }
+
+    /**
+     * Parse a query, passing each word through the analyzer, which returns its stem or
+     * an empty string for a stop word. Returns null if nothing is left to search for.
+     */
+    public static Query parse(String raw, UnaryOperator<String> analyzer) {
+        return new QueryParser(raw, analyzer).query(Query.Field.ANY, false);
+    }
+
+    private void tokenize(String raw) {
+        int n = raw.length();
+        int i = 0;
+        while (i < n) {
+            char c = raw.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(new Token(c == '(' ? Kind.OPEN : Kind.CLOSE, null));
+                i++;
+            } else if (c == '"' && raw.indexOf('"', i + 1) > 0) {
+                int end = raw.indexOf('"', i + 1);
+                tokens.add(new Token(Kind.PHRASE, raw.substring(i + 1, end)));
+                i = end + 1;
+            } else if ((c == '+' || c == '-') && i + 1 < n && !Character.isWhitespace(raw.charAt(i + 1))) {
+                tokens.add(new Token(c == '+' ? Kind.PLUS : Kind.MINUS, null));
+                i++;
+            } else {
+                int start = i++;
+                while (i < n && !Character.isWhitespace(raw.charAt(i)) && "()\"".indexOf(raw.charAt(i)) < 0) {
+                    i++;
+                }
+                String word = raw.substring(start, i);
+                String lower = word.toLowerCase();
+                if (lower.startsWith("title:") || lower.startsWith("body:")) {
+                    tokens.add(new Token(Kind.FIELD, lower.substring(0, lower.indexOf(':'))));
+                    i = start + lower.indexOf(':') + 1;     // the rest is the next token
+                } else if (word.equals("AND") || word.equals("OR") || word.equals("NOT")) {
+                    tokens.add(new Token(Kind.valueOf(word), null));
+                } else {
+                    tokens.add(new Token(Kind.WORD, word));
+                }
+            }
+        }
+    }
+
+    /**
+     * clause*, up to the end or, when nested, the closing parenthesis
+     */
+    private Query query(Query.Field field, boolean nested) {
+        List<Query> must = new ArrayList<>();
+        List<Query> should = new ArrayList<>();
+        List<Query> mustNot = new ArrayList<>();
+        while (pos < tokens.size() && !(nested && peek(Kind.CLOSE))) {
+            int start = pos;
+            boolean required = false, excluded = false;
+            for (; pos < tokens.size() && (peek(Kind.PLUS) || peek(Kind.MINUS)); pos++) {
+                required |= peek(Kind.PLUS);
+                excluded |= peek(Kind.MINUS);
+            }
+            Query clause = or(field);
+            if (pos == start) {
+                pos++;      // a token that cannot start a clause
+            }
+            if (clause == null) continue;
+
+            if (clause instanceof Query.Bool bool && bool.must().isEmpty() && bool.should().isEmpty()) {
+                // NOT x as a clause of its own excludes x
+                if (!excluded) mustNot.addAll(bool.mustNot());
+            } else if (excluded) {
+                mustNot.add(clause);
+            } else if (required) {
+                must.add(clause);
+            } else if (clause instanceof Query.Phrase phrase && !nested) {
+                must.add(new Query.Phrase(phrase.words(), phrase.field(), true));
+            } else {
+                should.add(clause);
+            }
+        }
+        return bool(must, should, mustNot);
+    }
+
+    private Query or(Query.Field field) {
+        List<Query> should = new ArrayList<>();
+        do {
+            Query clause = and(field);
+            if (clause != null) should.add(clause);
+        } while (accept(Kind.OR));
+        return bool(new ArrayList<>(), should, new ArrayList<>());
+    }
+
+    private Query and(Query.Field field) {
+        List<Query> must = new ArrayList<>();
+        List<Query> mustNot = new ArrayList<>();
+        do {
+            boolean not = false;
+            for (; pos < tokens.size() && (peek(Kind.NOT) || peek(Kind.MINUS) || peek(Kind.PLUS)); pos++) {
+                if (!peek(Kind.PLUS)) not = !not;
+            }
+            Query clause = primary(field);
+            if (clause != null) (not ? mustNot : must).add(clause);
+        } while (accept(Kind.AND));
+        return bool(must, new ArrayList<>(), mustNot);
+    }
+
+    private Query primary(Query.Field field) {
+        if (accept(Kind.FIELD)) {
+            field = tokens.get(pos - 1).text().equals("title") ? Query.Field.TITLE : Query.Field.BODY;
+        }
+        if (pos == tokens.size()) return null;
+        Token token = tokens.get(pos);
+        switch (token.kind()) {
+            case OPEN -> {
+                pos++;
+                Query group = query(field, true);
+                accept(Kind.CLOSE);
+                return group;
+            }
+            case PHRASE -> {
+                pos++;
+                List<String> words = new ArrayList<>();
+                for (String word : token.text().trim().split("\\s+")) {
+                    String stem = analyzer.apply(word);
+                    if (!stem.isEmpty()) words.add(stem);
+                }
+                return words.isEmpty() ? null : new Query.Phrase(words, field, false);
+            }
+            case WORD -> {
+                pos++;
+                String stem = analyzer.apply(token.text());
+                return stem.isEmpty() ? null : new Query.Term(stem, field);
+            }
+            default -> {
+                return null;    // left for the caller
+            }
+        }
+    }
+
+    private boolean peek(Kind kind) {
+        return tokens.get(pos).kind() == kind;
+    }
+
+    private boolean accept(Kind kind) {
+        if (pos < tokens.size() && peek(kind)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Helper method to make a group, dropping it if empty, unwrapping it if it holds a
+     * single clause, and merging in nested groups of the same kind
+     */
+    private static Query bool(List<Query> must, List<Query> should, List<Query> mustNot) {
+        List<Query> flatMust = new ArrayList<>();
+        List<Query> flatShould = new ArrayList<>();
+        List<Query> flatMustNot = new ArrayList<>();
+        for (Query clause : must) {
+            if (clause instanceof Query.Bool bool && bool.should().isEmpty()) {
+                flatMust.addAll(bool.must());
+                flatMustNot.addAll(bool.mustNot());
+            } else {
+                flatMust.add(clause);
+            }
+        }
+        for (Query clause : should) {
+            if (clause instanceof Query.Bool bool && bool.must().isEmpty() && bool.mustNot().isEmpty()) {
+                flatShould.addAll(bool.should());
+            } else {
+                flatShould.add(clause);
+            }
+        }
+        for (Query clause : mustNot) {
+            if (clause instanceof Query.Bool bool && bool.must().isEmpty() && bool.mustNot().isEmpty()) {
+                flatMustNot.addAll(bool.should());      // not (a or b) is not a and not b
+            } else {
+                flatMustNot.add(clause);
+            }
+        }
+        int clauses = flatMust.size() + flatShould.size() + flatMustNot.size();
+        if (clauses == 0) return null;
+        if (clauses == 1 && flatMustNot.isEmpty()) {
+            return flatMust.isEmpty() ? flatShould.get(0) : flatMust.get(0);
+        }
+        return new Query.Bool(List.copyOf(flatMust), List.copyOf(flatShould), List.copyOf(flatMustNot));
+    }
+}
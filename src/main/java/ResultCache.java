@@ -0,0 +1,131 @@
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the top results of queries, keyed on the canonical form of the parsed
+ * query (see {@link Query}), so that queries differing only in case, stop words or
+ * the order of their terms share one entry.
+ *
+ * Entries expire after a fixed time and the least recently used are evicted once
+ * the cache is full. Like {@link PostingsCache} the entries are spread over
+ * independently locked segments. A cache belongs to one state of the index; the
+ * search engine starts a new one whenever the index changes.
+ */
+public class ResultCache {
+    private static final int SEGMENTS = 16;
+
+    /**
+     * A parsed query, in its canonical form
+     */
+    public record Key(String query) { }
+
+    /**
+     * Top results of a query: page IDs with their scores, best first, and the index that
+     * ranked them, where their pages are looked up (null until {@link #in} is called).
+     * The arrays must not be changed.
+     */
+    public record Results(int[] pageIds, double[] scores, SearchIndex index) {
+        public Results(int[] pageIds, double[] scores) {
+            this(pageIds, scores, null);
+        }
+
+        /**
+         * The same results, ranked in index
+         */
+        public Results in(SearchIndex index) {
+            return new Results(pageIds, scores, index);
+        }
+    }
+
+    private record Entry(Results results, long expires) { }
+
+    private final int capacity;
+    private final long ttlNanos;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * A cache of up to capacity queries, each kept for at most ttlMillis; capacity 0 caches nothing
+     */
+    public ResultCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment((capacity + SEGMENTS - 1) / SEGMENTS);
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the cached results of a query, or null if there are none or they have expired
+     */
+    public Results get(Key key) {
+        if (capacity == 0) return null;
+        Results results = segment(key).get(key, System.nanoTime());
+        if (results == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return results;
+    }
+
+    public void put(Key key, Results results) {
+        if (capacity == 0) return;
+        segment(key).put(key, new Entry(results, System.nanoTime() + ttlNanos));
+    }
+
+    private Segment segment(Key key) {
+        return segments[Math.floorMod(key.hashCode(), SEGMENTS)];
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        long lookups = hits() + misses();
+        return String.format("result cache: %d hits, %d misses (%.1f%% hits), capacity %d",
+                hits(), misses(), lookups == 0 ? 0.0 : 100.0 * hits() / lookups, capacity);
+    }
+
+    /**
+     * One lock's worth of the cache: an access-ordered map, least recently used first
+     */
+    private static final class Segment {
+        private final LinkedHashMap<Key, Entry> entries;
+
+        Segment(int capacity) {
+            entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(java.util.Map.Entry<Key, Entry> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized Results get(Key key, long now) {
+            Entry entry = entries.get(key);
+            if (entry == null) return null;
+            if (now - entry.expires() >= 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.results();
+        }
+
+        synchronized void put(Key key, Entry entry) {
+            entries.put(key, entry);
+        }
+    }
+}
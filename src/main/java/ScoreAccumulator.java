@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+/**
+ * Score sums of the pages of one query, added to one term at a time: a dense array
+ * indexed by page ID, plus the list of pages touched so far, so collecting and
+ * clearing cost as much as the pages matched rather than the whole collection.
+ *
+ * Each thread reuses one accumulator from query to query, so once it has grown to
+ * the size of the collection, scoring allocates nothing.
+ */
+public final class ScoreAccumulator {
+    private static final ThreadLocal<ScoreAccumulator> PER_THREAD = ThreadLocal.withInitial(ScoreAccumulator::new);
+
+    private double[] scores = new double[0];
+    private int[] pages = new int[0];       // touched pages, each once
+    private int size;
+
+    private ScoreAccumulator() { }
+
+    /**
+     * The accumulator of the calling thread, emptied and sized for page IDs up to maxPageId
+     */
+    public static ScoreAccumulator forThread(int maxPageId) {
+        ScoreAccumulator accumulator = PER_THREAD.get();
+        accumulator.clear();
+        accumulator.grow(maxPageId + 1);
+        return accumulator;
+    }
+
+    /**
+     * Add a weight to the score of a page; weights of 0 or less are ignored
+     */
+    public void add(int pageId, double weight) {
+        if (weight <= 0) return;
+        if (pageId >= scores.length) {
+            grow(pageId + 1);   // a page indexed after the statistics were read
+        }
+        if (scores[pageId] == 0) {
+            pages[size++] = pageId;
+        }
+        scores[pageId] += weight;
+    }
+
+    /**
+     * Number of pages with a score
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The i-th page with a score, in the order they were first scored
+     */
+    public int page(int i) {
+        return pages[i];
+    }
+
+    public double score(int pageId) {
+        return scores[pageId];
+    }
+
+    /**
+     * Reset the scores of the touched pages
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            scores[pages[i]] = 0;
+        }
+        size = 0;
+    }
+
+    private void grow(int length) {
+        if (length <= scores.length) return;
+        length = Math.max(length, scores.length + (scores.length >> 1));
+        scores = Arrays.copyOf(scores, length);
+        pages = Arrays.copyOf(pages, length);
+    }
+}
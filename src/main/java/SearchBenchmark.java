@@ -0,0 +1,123 @@
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput benchmark for concurrent searches: one {@link SearchEngine} is shared by
+ * 1, 2, 4, ... threads (up to the number of cores), each running queries in a loop
+ * for a fixed time, and the queries per second at each thread count are printed
+ * with the speedup over one thread, followed by the postings cache counts. One
+ * more run on one thread scores each query on all cores (see
+ * SearchEngine.setParallelism). The
+ * result cache is turned off for these runs, so every query is scored; a last run
+ * on all cores turns it back on. Each query fetches the first page of results, as
+ * the search page does.
+ *
+ *   java SearchBenchmark [dbName] [secondsPerRun] [query ...]
+ *
+ * Without queries, single words, word pairs and two-word phrases are made from the
+ * top keywords of the indexed pages.
+ */
+public class SearchBenchmark {
+    private static final String DB_NAME = "spider_index";
+    private static final int DEFAULT_SECONDS = 5;
+    private static final int DEFAULT_QUERY_PAGES = 50;
+    private static final int RESULTS_PER_PAGE = 10;
+
+    public static void main(String[] args) throws Exception {
+        String dbName = args.length > 0 ? args[0] : DB_NAME;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        try (SearchEngine searchEngine = new SearchEngine(dbName)) {
+            List<String> queries = args.length > 2
+                    ? Arrays.asList(args).subList(2, args.length)
+                    : defaultQueries(searchEngine.getIndex());
+            if (queries.isEmpty()) {
+                System.out.println("No queries to run, is the index empty?");
+                return;
+            }
+            System.out.println("Database: " + dbName + ", " + queries.size() + " queries, " + cores + " cores, "
+                    + seconds + " s per run");
+
+            int resultCacheEntries = searchEngine.getResultCache().capacity();
+            searchEngine.setResultCacheLimits(0, 0);
+            run(searchEngine, queries, 1, seconds);     // warm up
+
+            double baseline = 0;
+            for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+                double qps = run(searchEngine, queries, threads, seconds);
+                if (threads == 1) baseline = qps;
+                System.out.printf("%3d threads: %10.1f queries/s, speedup %5.2f%n", threads, qps, qps / baseline);
+                if (threads == cores) break;
+            }
+            System.out.println(searchEngine.getPostingsCache());
+
+            if (cores > 1) {
+                searchEngine.setParallelism(cores, 0);
+                double parallelQps = run(searchEngine, queries, 1, seconds);
+                System.out.printf("%3d threads: %10.1f queries/s, each query on %d threads, speedup %5.2f%n",
+                        1, parallelQps, cores, parallelQps / baseline);
+                searchEngine.setParallelism(1, 0);
+            }
+
+            searchEngine.setResultCacheLimits(resultCacheEntries, TimeUnit.SECONDS.toMillis(seconds));
+            double qps = run(searchEngine, queries, cores, seconds);
+            System.out.printf("%3d threads: %10.1f queries/s with the result cache%n", cores, qps);
+            System.out.println(searchEngine.getResultCache());
+        }
+    }
+
+    /**
+     * Run the queries on a number of threads for some seconds and return the queries per second
+     */
+    private static double run(SearchEngine searchEngine, List<String> queries, int threads, int seconds)
+            throws InterruptedException {
+        LongAdder completed = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            int first = t * queries.size() / threads;   // threads start at different queries
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = first; System.nanoTime() < deadline[0]; i++) {
+                        searchEngine.search(queries.get(i % queries.size()), 0, RESULTS_PER_PAGE);
+                        completed.increment();
+                    }
+                } catch (Exception e) {
+                    System.err.println("Benchmark query failed: " + e.getMessage());
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + TimeUnit.SECONDS.toNanos(seconds);
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return completed.sum() / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    /**
+     * Helper method to make queries from the top keywords of the first pages
+     */
+    private static List<String> defaultQueries(SearchIndex index) throws Exception {
+        List<String> queries = new ArrayList<>();
+        List<Integer> pageIds = index.getAllPageIds();
+        for (int pageId : pageIds.subList(0, Math.min(DEFAULT_QUERY_PAGES, pageIds.size()))) {
+            List<String> words = new ArrayList<>(index.getTopKeywords(pageId, 3).keySet());
+            if (words.isEmpty()) continue;
+            queries.add(words.get(0));
+            if (words.size() >= 2) {
+                queries.add(words.get(0) + " " + words.get(1));
+                queries.add("\"" + words.get(0) + " " + words.get(1) + "\"");
+            }
+        }
+        return queries;
+    }
+}
@@ -1,283 +1,742 @@
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Vector‑space search engine with
  *   • tf‑idf / max‑tf weighting
  *   • cosine similarity
- *   • quoted‑phrase AND filtering
+ *   • quoted‑phrase AND filtering, matched on word positions
+ *   • AND / OR / NOT, +required and ‑excluded clauses, grouping and title: / body:
+ *     scoping (see {@link Query}), run as posting iterators (see {@link PageIterator})
  *   • title‑field boost
+ *   • top‑K retrieval that skips pages which cannot make the top results (MaxScore),
+ *     or term‑at‑a‑time scoring into a reused accumulator when nothing can be skipped
+ *
+ * One engine can serve any number of threads at once: all state of a query is
+ * local to search(), and the only shared state is the index (a read-only
+ * snapshot, or the live database behind a lock) and the postings cache.
+ *
+ * A query with many postings can also be scored on several threads of its own (see
+ * {@link #setParallelism}), for when there are more cores than queries running.
+ *
+ * The top results of each query are cached under its stemmed terms and phrases
+ * (see {@link ResultCache}), so repeated queries skip scoring.
+ *
+ * About once a second the engine checks whether the index has changed: a newer
+ * snapshot file is opened in place of the old one, and for a live index the
+ * collection statistics are reloaded when its generation has moved on. Queries
+ * already running finish on the index they started with.
  */
 public class SearchEngine implements AutoCloseable {
     private static final int MAX_RESULTS        = 300;
     private static final double TITLE_BOOST     = 5.0;
+    private static final long POSTINGS_CACHE_BYTES  = 64L * 1024 * 1024;
+    private static final long REFRESH_CHECK_MILLIS  = 1000;
+    private static final int  RESULT_CACHE_ENTRIES  = 1000;
+    private static final long RESULT_CACHE_TTL_MILLIS = 10 * 60 * 1000;
+    private static final ResultCache.Results NO_RESULTS = new ResultCache.Results(new int[0], new double[0]);
+    private static final int CURSOR_BYTES       = 12;   // score and page ID of the last result of a page
+    private static final long PARALLEL_MIN_POSTINGS = 100_000;
 
-    private final InvertedIndexManager index;
     private final StopStem              stopStem;
-    private final int                   totalDocs;
-    private final Map<Integer, Double> idfCache     = new HashMap<>();
-    private final Map<Integer, Integer> maxTFCache = new HashMap<>();
-
-    // Cache postings in memory for the current query
-    Map<Integer, Map<Integer, Integer>> bodyPostingsCache = new HashMap<>();
-    Map<Integer, Map<Integer, Integer>> titlePostingsCache = new HashMap<>();
+    private final File                  snapshotFile;   // null unless searching a snapshot
+    private volatile Searcher           searcher;
+    private volatile long               nextRefreshCheck;
+    private int                         resultCacheEntries   = RESULT_CACHE_ENTRIES;
+    private long                        resultCacheTtlMillis = RESULT_CACHE_TTL_MILLIS;
+    private volatile ForkJoinPool       parallelPool;   // null: each query scored on the thread running it
+    private volatile long               parallelMinPostings  = PARALLEL_MIN_POSTINGS;
+
+    /**
+     * An opened index with what the queries need from it, replaced as a whole when the index changes
+     */
+    private record Searcher(SearchIndex index, CollectionStats stats, long generation,
+                            PostingsCache postingsCache, ResultCache resultCache, long snapshotModified) { }
+
+    /**
+     * One page of the results of a query: the results, the position of the first in the
+     * ranking, how many results there are in all, the cursor of the next page (null
+     * on the last page), and the index the results were ranked in, for looking up more
+     * about their pages (null when there are none)
+     */
+    public record ResultPage(List<SearchResult> results, int offset, int totalResults, String nextCursor,
+                             SearchIndex index) { }
 
     // ────────────────────────────────────────────────────────────────────────────
+    /**
+     * Search the index in dbName, through its snapshot (dbName.snapshot) if one has been exported
+     */
     public SearchEngine(String dbName) throws IOException {
-        index      = new InvertedIndexManager(dbName);
-        stopStem   = new StopStem("stopwords.txt");
-        totalDocs  = index.getAllPageIds().size();
+        this(openIndex(dbName), new File(dbName + ".snapshot"));
+    }
+
+    public SearchEngine(SearchIndex index) throws IOException {
+        this(index, null);
+    }
+
+    private SearchEngine(SearchIndex index, File snapshotFile) throws IOException {
+        stopStem          = new StopStem("stopwords.txt");
+        this.snapshotFile = index instanceof IndexSnapshot ? snapshotFile : null;
+        long modified     = this.snapshotFile == null ? 0 : this.snapshotFile.lastModified();
+        searcher          = newSearcher(index, new PostingsCache(POSTINGS_CACHE_BYTES), modified);
+        nextRefreshCheck  = System.currentTimeMillis() + REFRESH_CHECK_MILLIS;
+    }
+
+    /**
+     * Helper method to set up a searcher for the current state of an index, with an empty result cache
+     */
+    private Searcher newSearcher(SearchIndex index, PostingsCache cache, long snapshotModified) throws IOException {
+        // page count, per-page and per-term statistics, stored as one record by the index
+        return new Searcher(index, index.getCollectionStats(), index.getGeneration(), cache,
+                new ResultCache(resultCacheEntries, resultCacheTtlMillis), snapshotModified);
+    }
 
-        // Precompute max term-frequency for each document
-        for (Integer pid : index.getAllPageIds()) {
-            maxTFCache.put(pid, index.getMaxTFForPageId(pid));
+    /**
+     * Set how many queries the result cache holds (0 turns it off) and for how long, emptying it
+     */
+    public synchronized void setResultCacheLimits(int entries, long ttlMillis) throws IOException {
+        resultCacheEntries   = entries;
+        resultCacheTtlMillis = ttlMillis;
+        Searcher old = searcher;
+        searcher = newSearcher(old.index(), old.postingsCache(), old.snapshotModified());
+    }
+
+    /**
+     * Score queries whose words and phrases have at least minPostings postings in all on up
+     * to parallelism threads, each over a range of page IDs. With a parallelism of 1 (the
+     * default) every query is scored on the thread running it.
+     */
+    public synchronized void setParallelism(int parallelism, long minPostings) {
+        ForkJoinPool old    = parallelPool;
+        parallelPool        = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        parallelMinPostings = minPostings;
+        if (old != null) old.shutdown();
+    }
+
+    private static SearchIndex openIndex(String dbName) throws IOException {
+        File snapshot = new File(dbName + ".snapshot");
+        if (snapshot.exists()) {
+            System.out.println("Searching index snapshot " + snapshot);
+            return IndexSnapshot.open(snapshot);
+        }
+        System.out.println("No snapshot of " + dbName + ", queries to the live index will run one at a time");
+        return new SynchronizedSearchIndex(new InvertedIndexManager(dbName));
+    }
+
+    /**
+     * The index searched by new queries. The pages of results already ranked are looked up
+     * in the index of their results (see {@link ResultCache.Results#index}), which differs
+     * once a new snapshot has been picked up.
+     */
+    public SearchIndex getIndex() {
+        return searcher.index();
+    }
+
+    /**
+     * The cache of posting lists of the current index, for its hit and miss counts
+     */
+    public PostingsCache getPostingsCache() {
+        return searcher.postingsCache();
+    }
+
+    /**
+     * The cache of query results of the current index, for its hit and miss counts
+     */
+    public ResultCache getResultCache() {
+        return searcher.resultCache();
+    }
+
+    /**
+     * Helper method to get the searcher for a new query, first picking up a changed index
+     * if it is time to check
+     */
+    private Searcher current() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now < nextRefreshCheck) {
+            return searcher;
+        }
+        synchronized (this) {
+            if (now < nextRefreshCheck) {
+                return searcher;
+            }
+            nextRefreshCheck = now + REFRESH_CHECK_MILLIS;
+            Searcher old = searcher;
+            long modified = snapshotFile == null ? 0 : snapshotFile.lastModified();
+            if (modified != old.snapshotModified() && modified != 0) {
+                System.out.println("Opening new index snapshot " + snapshotFile);
+                searcher = newSearcher(IndexSnapshot.open(snapshotFile), new PostingsCache(POSTINGS_CACHE_BYTES), modified);
+                old.index().close();    // the mapping stays valid for queries still reading it
+            } else if (old.index().getGeneration() != old.generation()) {
+                searcher = newSearcher(old.index(), old.postingsCache(), old.snapshotModified());
+            }
+            return searcher;
         }
     }
 
     // ────────────────────────────────────────────────────────────────────────────
+    /**
+     * All results of a query (up to MAX_RESULTS), with the details of every page looked up
+     */
     public List<SearchResult> search(String raw) throws IOException {
-        if (raw == null || raw.isBlank()) return Collections.emptyList();
+        return search(raw, 0, MAX_RESULTS).results();
+    }
+
+    /**
+     * Up to limit results of a query, starting at offset in the ranking
+     */
+    public ResultPage search(String raw, int offset, int limit) throws IOException {
+        return page(rank(raw), offset, limit);
+    }
+
+    /**
+     * Up to limit results of a query, following the result the cursor of an earlier page
+     * points at (from the first result if cursor is null). Unlike an offset, a cursor
+     * continues after the same result when the index changed in between.
+     */
+    public ResultPage searchAfter(String raw, String cursor, int limit) throws IOException {
+        ResultCache.Results ranked = rank(raw);
+        return page(ranked, cursor == null ? 0 : offsetAfter(ranked, cursor), limit);
+    }
+
+    /**
+     * The ranked pages of a query, best first: only their IDs and scores, nothing is
+     * looked up about the pages (see {@link #hydrate})
+     */
+    public ResultCache.Results rank(String raw) throws IOException {
+        if (raw == null || raw.isBlank()) return NO_RESULTS;
+        Searcher searcher         = current();
 
         /*──────────────── 1.  Parse query ───────────────*/
-        List<String> phrases = new ArrayList<>();
-        List<String> terms   = new ArrayList<>();
-
-        Pattern parser = Pattern.compile("\"([^\"]+)\"|(\\S+)");
-        Matcher m = parser.matcher(raw);
-        while (m.find()) {
-            String phrase = m.group(1);
-            String token  = m.group(2);
-            if (phrase != null) {
-                String processed = processPhrase(phrase);
-                if (!processed.isEmpty()) {
-                    phrases.add(processed);
-//                    Collections.addAll(terms, processed.split(" ")); // keep duplicates
-                    Collections.addAll(terms, processed); // keep duplicates
-                }
-            } else if (token != null) {
-                addTerm(token, terms);
+        Query query = QueryParser.parse(raw, this::analyze);
+        if (query == null) return NO_RESULTS;
+
+        // queries with the same stemmed words, phrases and operators share their results
+        ResultCache.Key key = new ResultCache.Key(query.toString());
+        ResultCache.Results results = searcher.resultCache().get(key);
+        if (results == null) {
+            results = score(searcher, query).in(searcher.index());
+            searcher.resultCache().put(key, results);
+        }
+        return results;
+    }
+
+    /**
+     * Look up the pages of the ranked results from index from (inclusive) to to (exclusive),
+     * in one batch, in the index that ranked them; pages no longer in it are left out
+     */
+    public List<SearchResult> hydrate(ResultCache.Results ranked, int from, int to) throws IOException {
+        if (from >= to) return new ArrayList<>();
+        int[] pageIds = Arrays.copyOfRange(ranked.pageIds(), from, to);
+        List<InvertedIndexManager.PageInfo> infos = ranked.index().getPageInfos(pageIds);
+        List<SearchResult> out = new ArrayList<>();
+        for (int i = 0; i < pageIds.length; i++) {
+            InvertedIndexManager.PageInfo info = infos.get(i);
+            if (info==null) continue;
+            SearchResult result = new SearchResult(pageIds[i], info.url, info.title, ranked.scores()[from + i],
+                    info.lastModifiedDate, info.size);
+            result.setChildPageIds(info.childPageIds);
+            out.add(result);
+        }
+        return out;
+    }
+
+    private ResultPage page(ResultCache.Results ranked, int offset, int limit) throws IOException {
+        int total = ranked.pageIds().length;
+        int from  = Math.min(Math.max(offset, 0), total);
+        int to    = (int) Math.min((long) from + Math.max(limit, 0), total);
+        String nextCursor = to > from && to < total ? cursorAfter(ranked, to - 1) : null;
+        return new ResultPage(hydrate(ranked, from, to), from, total, nextCursor, ranked.index());
+    }
+
+    /** Opaque cursor pointing at the i-th ranked result: its score and page ID, URL-safe */
+    private static String cursorAfter(ResultCache.Results ranked, int i) {
+        ByteBuffer cursor = ByteBuffer.allocate(CURSOR_BYTES);
+        cursor.putDouble(ranked.scores()[i]).putInt(ranked.pageIds()[i]);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.array());
+    }
+
+    /** Index of the first ranked result that comes after the result a cursor points at */
+    private static int offsetAfter(ResultCache.Results ranked, String cursor) {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            bytes = new byte[0];
+        }
+        if (bytes.length != CURSOR_BYTES) {
+            throw new IllegalArgumentException("Invalid search cursor: " + cursor);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        double score = buffer.getDouble();
+        int pageId   = buffer.getInt();
+        // results are ordered by score, highest first, then by page ID
+        int low = 0, high = ranked.pageIds().length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            double midScore = ranked.scores()[mid];
+            boolean after = midScore < score || (midScore == score && ranked.pageIds()[mid] > pageId);
+            if (after) high = mid;
+            else low = mid + 1;
+        }
+        return low;
+    }
+
+    /**
+     * Score the pages matching a parsed query, returning the top MAX_RESULTS
+     */
+    private ResultCache.Results score(Searcher searcher, Query query) {
+        int totalDocs = searcher.stats().totalDocs();
+
+        // postings of every word and phrase in the query, the excluded ones too
+        Map<Query, Clause> clauses = new HashMap<>();
+        for (Query leaf : Query.allClauses(query)) {
+            if (!clauses.containsKey(leaf)) clauses.put(leaf, loadClause(searcher, leaf));
+        }
+
+        // the words and phrases that add to the score, each once; a quoted single word scores as the word
+        Map<String, Query> scored = new LinkedHashMap<>();
+        for (Query leaf : Query.scoredClauses(query)) {
+            String key = leaf instanceof Query.Phrase phrase && phrase.words().size() == 1
+                    ? new Query.Term(phrase.words().get(0), phrase.field()).toString()
+                    : leaf.toString();
+            if (!scored.containsKey(key) || leaf instanceof Query.Phrase) scored.put(key, leaf);
+        }
+        List<TermScorer> scorers = new ArrayList<>();
+        for (Query leaf : scored.values()) {
+            Clause clause = clauses.get(leaf);
+            if (clause.df == 0) continue;
+            double idf = Math.log10((double) totalDocs / clause.df);
+            // the highest frequencies of the word or phrase bound the score it can add to any page
+            scorers.add(new TermScorer(clause.body, clause.title, idf, weight(clause.maxBodyTF, clause.maxTitleTF, idf)));
+        }
+        if (scorers.isEmpty()) return NO_RESULTS;
+        scorers.sort(Comparator.comparingDouble(s -> s.maxScore));
+        long postings = 0;
+        for (TermScorer scorer : scorers) postings += scorer.postings;
+        int maxPageId = searcher.stats().maxPageId();
+
+        if (!isRanked(query)) {
+            return inRanges(postings, maxPageId,
+                    (from, to) -> scoreMatches(plan(query, clauses, from), copies(scorers, from), from, to));
+        }
+        // words and phrases side by side: the pages with a score, within the pages of the phrases
+        PageIdSet candidates = null;    // null: every page
+        List<Query> phrases = query instanceof Query.Bool bool ? bool.must()
+                : query instanceof Query.Phrase ? List.of(query) : List.of();
+        for (Query phrase : phrases) {
+            PageIdSet pages = clauses.get(phrase).pages;
+            if (pages.isEmpty()) {
+                if (((Query.Phrase) phrase).lenient()) continue;
+                return NO_RESULTS;
             }
+            candidates = candidates == null ? pages : candidates.and(pages);
         }
-//        // If no quoted phrase but query contains multiple words, treat the whole query as a phrase
-//        if (phrases.isEmpty()) {
-//            String defaultPhrase = processPhrase(raw);
-//            if (defaultPhrase.contains(" ")) {
-//                List<String> words = new ArrayList<>(Arrays.asList(defaultPhrase.split(" ")));
-//                List<String> ngram_list = new ArrayList<>();
-//                int MAX_NGRAM = 3;
-//                for (int n = 2; n <= MAX_NGRAM; n++) {
-//                    for (int i = 0; i + n <= words.size(); i++) {
-//                        String ngram = String.join(" ", words.subList(i, i + n));
-//                        ngram_list.add(ngram);
-//                    }
-//                }
-//                phrases.addAll(ngram_list);
-////                phrases.add(defaultPhrase);
-//                // Don't add terms again - they were already added during initial tokenization
-//                // Collections.addAll(terms, defaultPhrase.split(" "));
-//            }
-//        }
-
-        System.out.println("Phrases: " + phrases);
-        System.out.println("Terms: " + terms);  
-        if (phrases.isEmpty() && terms.isEmpty()) return Collections.emptyList();
-
-        Set<Integer> candidates = new HashSet<>(index.getAllPageIds());
-        for (String ph : phrases) {
-            Integer phId = index.getWordIdIfExists(ph);
-            Set<Integer> hits = new HashSet<>();
-            if (phId != null) {
-                try {
-                    @SuppressWarnings("unchecked")
-                    Map<Integer,Integer> bodyPostings = (Map<Integer,Integer>) index.getBodyPostings(phId);
-                    if (bodyPostings != null) hits.addAll(bodyPostings.keySet());
-                    @SuppressWarnings("unchecked")
-                    Map<Integer,Integer> titlePostings = (Map<Integer,Integer>) index.getTitlePostings(phId);
-                    if (titlePostings != null) hits.addAll(titlePostings.keySet());
-                } catch (IOException e) {
-                    // If we can't read postings, treat as no matches
-                    System.err.println("Error reading postings for phrase '" + ph + "': " + e.getMessage());
-                }
+        if (candidates != null && candidates.isEmpty()) return NO_RESULTS;
+
+        // when the terms cannot match more pages than are returned, there is nothing to skip
+        if (postings <= MAX_RESULTS) return termAtATime(scorers, candidates, maxPageId);
+        PageIdSet pages = candidates;
+        return inRanges(postings, maxPageId, (from, to) -> maxScore(copies(scorers, from), pages, to));
+    }
+
+    /**
+     * Top results of the pages in [from, to), scored with scorers of their own
+     */
+    private interface RangeScorer {
+        ResultCache.Results score(int from, int to);
+    }
+
+    /**
+     * Score every page with a range scorer: on this thread, or, when the query has enough
+     * postings and a parallel pool is set, split into one range of page IDs per thread of
+     * the pool with the top results of the ranges merged
+     */
+    private ResultCache.Results inRanges(long postings, int maxPageId, RangeScorer scorer) {
+        ForkJoinPool pool = parallelPool;
+        if (pool == null || postings < parallelMinPostings) {
+            return scorer.score(0, PostingList.NO_MORE_DOCS);
+        }
+        int ranges = pool.getParallelism();
+        int[] bounds = new int[ranges + 1];
+        for (int i = 1; i < ranges; i++) {
+            bounds[i] = (int) ((long) (maxPageId + 1) * i / ranges);
+        }
+        bounds[ranges] = PostingList.NO_MORE_DOCS;      // and pages indexed after the statistics were read
+        try {
+            return pool.invoke(new RangeTask(scorer, bounds, 0, ranges));
+        } catch (RejectedExecutionException e) {
+            // the pool was replaced while the query was starting
+            return scorer.score(0, PostingList.NO_MORE_DOCS);
+        }
+    }
+
+    /**
+     * Scores the ranges lo to hi - 1 (range i covers the pages from bounds[i] up to
+     * bounds[i + 1]) by forking one half and scoring the other
+     */
+    private static final class RangeTask extends RecursiveTask<ResultCache.Results> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient RangeScorer scorer;     // tasks are never serialized
+        private final int[] bounds;
+        private final int lo, hi;
+
+        RangeTask(RangeScorer scorer, int[] bounds, int lo, int hi) {
+            this.scorer = scorer;
+            this.bounds = bounds;
+            this.lo     = lo;
+            this.hi     = hi;
+        }
+
+        @Override
+        protected ResultCache.Results compute() {
+            if (hi - lo == 1) return scorer.score(bounds[lo], bounds[hi]);
+            int mid = (lo + hi) >>> 1;
+            RangeTask left = new RangeTask(scorer, bounds, lo, mid);
+            left.fork();
+            ResultCache.Results right = new RangeTask(scorer, bounds, mid, hi).compute();
+            return merge(left.join(), right);
+        }
+    }
+
+    /** The top MAX_RESULTS of two sets of top results */
+    private static ResultCache.Results merge(ResultCache.Results a, ResultCache.Results b) {
+        TopScores top = new TopScores(MAX_RESULTS);
+        for (ResultCache.Results results : List.of(a, b)) {
+            for (int i = 0; i < results.pageIds().length; i++) {
+                top.offer(results.pageIds()[i], results.scores()[i]);
             }
-            // If no matches found for this phrase, no documents can match the query
-            if (hits.isEmpty() && terms.isEmpty()){
-                return Collections.emptyList();
-            } else if (!hits.isEmpty()){
-                candidates.retainAll(hits);
+        }
+        return top.results();
+    }
+
+    /** Scorers of the same terms, in the same order, each on its first page from page from on */
+    private static List<TermScorer> copies(List<TermScorer> scorers, int from) {
+        List<TermScorer> copies = new ArrayList<>(scorers.size());
+        for (TermScorer scorer : scorers) copies.add(new TermScorer(scorer, from));
+        return copies;
+    }
+
+    /**
+     * Helper method to tell whether a query is words and phrases side by side, with no
+     * operators other than '+' on phrases, so that the pages it matches are those with a
+     * score that contain every phrase in its must clauses
+     */
+    private static boolean isRanked(Query query) {
+        if (!(query instanceof Query.Bool bool)) return true;
+        if (!bool.mustNot().isEmpty()) return false;
+        for (Query clause : bool.must()) {
+            if (!(clause instanceof Query.Phrase)) return false;
+        }
+        for (Query clause : bool.should()) {
+            if (clause instanceof Query.Bool) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compile a query into iterators over the pages it matches from page from on
+     */
+    private static PageIterator plan(Query query, Map<Query, Clause> clauses, int from) {
+        if (!(query instanceof Query.Bool bool)) {
+            Clause clause = clauses.get(query);
+            return clause.pages != null ? PageIterator.of(clause.pages) : PageIterator.of(from, clause.body, clause.title);
+        }
+        List<PageIterator> required = new ArrayList<>();
+        for (Query clause : bool.must()) {
+            if (clause instanceof Query.Phrase phrase && phrase.lenient() && clauses.get(clause).df == 0) continue;
+            required.add(plan(clause, clauses, from));
+        }
+        List<PageIterator> optional = new ArrayList<>();
+        for (Query clause : bool.should()) {
+            optional.add(plan(clause, clauses, from));
+        }
+        List<PageIterator> excluded = new ArrayList<>();
+        for (Query clause : bool.mustNot()) {
+            excluded.add(plan(clause, clauses, from));
+        }
+        PageIterator matches = required.isEmpty() ? PageIterator.or(optional) : PageIterator.and(required);
+        return PageIterator.andNot(matches, PageIterator.or(excluded));
+    }
+
+    /**
+     * Score the pages in [from, to) a plan matches and keep the best, stopping once no
+     * page can score enough to make the top results
+     */
+    private static ResultCache.Results scoreMatches(PageIterator matches, List<TermScorer> scorers, int from, int to) {
+        double bound = 0;
+        for (TermScorer scorer : scorers) bound += scorer.maxScore;
+        TopScores top = new TopScores(MAX_RESULTS);
+        for (int docId = matches.advance(from); docId < to && bound > top.threshold();
+             docId = matches.nextDoc()) {
+            double score = 0;
+            for (TermScorer scorer : scorers) {
+                score += scorer.score(docId);
             }
-//            if (hits.isEmpty() && terms.isEmpty()) return Collections.emptyList();
-//            candidates.retainAll(hits);
-            if (candidates.isEmpty() && terms.isEmpty()) return Collections.emptyList();
-        }
-        System.out.println("Candidates: " + candidates);
-
-        Map<String,Integer> termToId = new HashMap<>();
-        Map<String,Integer> df        = new HashMap<>();
-        Map<String,Double>  qv        = new HashMap<>();
-
-        // calculate tf of query terms
-        int maxNumberOfTerm = 1;
-        Map<String, Integer> termMap = new HashMap<>();
-        for (String term: terms){
-            termMap.merge(term, 1, Integer::sum);
-            if (termMap.get(term) > maxNumberOfTerm){
-                maxNumberOfTerm = termMap.get(term);
+            top.offer(docId, score);
+        }
+        return top.results();
+    }
+
+    /**
+     * Term at a time: add up the scores of each term's pages in the thread's accumulator,
+     * then keep the best of the candidates (null: every page)
+     */
+    private static ResultCache.Results termAtATime(List<TermScorer> scorers, PageIdSet candidates, int maxPageId) {
+        ScoreAccumulator accumulator = ScoreAccumulator.forThread(maxPageId);
+        try {
+            for (TermScorer scorer : scorers) {
+                for (int docId = scorer.doc(); docId != PostingList.NO_MORE_DOCS; docId = scorer.doc()) {
+                    accumulator.add(docId, scorer.score(docId));
+                    scorer.advance(docId + 1);
+                }
             }
+            TopScores top = new TopScores(MAX_RESULTS);
+            for (int i = 0; i < accumulator.size(); i++) {
+                int docId = accumulator.page(i);
+                if (candidates == null || candidates.contains(docId)) top.offer(docId, accumulator.score(docId));
+            }
+            return top.results();
+        } finally {
+            accumulator.clear();
         }
-        // filter out duplicated query terms
-        Set<String> termSet = new HashSet<>(terms);
-        terms = new ArrayList<>(termSet);
+    }
 
-        for (String t : terms) {
-            int wid;
-            if (index.getWordIdIfExists(t) == null){
-                continue;
+    /**
+     * Document at a time with MaxScore pruning over the candidates (null: every page) up
+     * to page to, for scorers sorted by their maxScore
+     */
+    private static ResultCache.Results maxScore(List<TermScorer> scorers, PageIdSet candidates, int to) {
+        /*
+         * MaxScore: with the terms ordered by the most they can add to a page, the
+         * leading terms whose bounds together do not beat the weakest of the top
+         * results so far cannot bring a page into them alone. Only pages of the other
+         * (essential) terms are visited, in page ID order, and the leading terms are
+         * looked up for a page only while it can still make the top results.
+         */
+        int n = scorers.size();
+        double[] bound = new double[n];     // bound[i]: the most terms 0..i can add together
+        for (int i = 0; i < n; i++) {
+            bound[i] = (i == 0 ? 0 : bound[i - 1]) + scorers.get(i).maxScore;
+        }
+        double[] contribution = new double[n];
+        TopScores top = new TopScores(MAX_RESULTS);
+        int essential = 0;                  // terms from here on are essential
+        while (true) {
+            double threshold = top.threshold();
+            while (essential < n && bound[essential] <= threshold) essential++;
+
+            int docId = PostingList.NO_MORE_DOCS;
+            for (int i = essential; i < n; i++) {
+                docId = Math.min(docId, scorers.get(i).doc());
             }
-            try { wid = index.getWordIdIfExists(t); }
-            catch (IOException e) { continue; }
-            if (wid == 0) continue; // Skip if term doesn't exist in index
-            termToId.put(t, wid);
-
-            // Compute or retrieve cached IDF with exception handling
-            double idf;
-            if (idfCache.containsKey(wid)) {
-                idf = idfCache.get(wid);
-            } else {
-                Set<Integer> docs = new HashSet<>();
-                try {
-                    @SuppressWarnings("unchecked")
-                    Map<Integer, Integer> body = (Map<Integer, Integer>) index.getBodyPostings(wid);
-                    if (body != null) docs.addAll(body.keySet());
-                    @SuppressWarnings("unchecked")
-                    Map<Integer, Integer> title = (Map<Integer, Integer>) index.getTitlePostings(wid);
-                    if (title != null) docs.addAll(title.keySet());
-                } catch (IOException e) {
-                    // ignore and treat as no docs
+            if (docId >= to) break;
+
+            if (candidates != null && !candidates.contains(docId)) {
+                // skip ahead to the next candidate
+                int next = candidates.nextPage(docId);
+                for (int i = essential; i < n; i++) {
+                    scorers.get(i).advance(next);
                 }
-                double computedIdf = docs.isEmpty() ? 0 : Math.log10((double) totalDocs / docs.size());
-                idfCache.put(wid, computedIdf);
-                idf = computedIdf;
+                continue;
             }
 
-            double tf = (double) termMap.get(t) / maxNumberOfTerm;
-            qv.merge(t, tf * idf, Double::sum);              // query tf == 1 each occurrence
-        }
-        double qMag = Math.sqrt(qv.values().stream().mapToDouble(w -> w*w).sum());
-        if (qMag == 0) return Collections.emptyList();
-
-        List<ScoredDoc> scored = new ArrayList<>();
-
-        for (int docId : candidates) {
-            Map<String,Integer> tfBody  = new HashMap<>();
-            Map<String,Integer> tfTitle = new HashMap<>();
-            int maxBody = 1, maxTitle = 1;
-
-            for (String t : terms) {
-                Integer widObj = termToId.get(t);
-                if (widObj == null) continue; // Skip if term wasn't mapped
-                int wid = widObj;
-                
-                // Load and cache postings just once per term
-                if (!bodyPostingsCache.containsKey(wid)) {
-                    try {
-                        @SuppressWarnings("unchecked")
-                        Map<Integer, Integer> postings = (Map<Integer, Integer>) index.getBodyPostings(wid);
-                        bodyPostingsCache.put(wid, postings != null ? postings : Collections.emptyMap());
-                    } catch (IOException e) {
-                        bodyPostingsCache.put(wid, Collections.emptyMap());
-                    }
-                }
-                
-                if (!titlePostingsCache.containsKey(wid)) {
-                    try {
-                        @SuppressWarnings("unchecked")
-                        Map<Integer, Integer> postings = (Map<Integer, Integer>) index.getTitlePostings(wid);
-                        titlePostingsCache.put(wid, postings != null ? postings : Collections.emptyMap());
-                    } catch (IOException e) {
-                        titlePostingsCache.put(wid, Collections.emptyMap());
-                    }
+            double partial = 0;
+            for (int i = essential; i < n; i++) {
+                TermScorer scorer = scorers.get(i);
+                contribution[i] = 0;
+                if (scorer.doc() == docId) {
+                    contribution[i] = scorer.score(docId);
+                    partial += contribution[i];
+                    scorer.advance(docId + 1);
                 }
-
-                // Then use cached postings in your calculation
-                int tb = bodyPostingsCache.getOrDefault(wid, Collections.emptyMap()).getOrDefault(docId, 0);
-                int tt = titlePostingsCache.getOrDefault(wid, Collections.emptyMap()).getOrDefault(docId, 0);
-                tfBody.put(t, tb);
-                tfTitle.put(t, tt);
             }
 
-            Map<String,Double> dv = new HashMap<>();
-            for (String t : terms) {
-                Integer widObj = termToId.get(t);
-                if (widObj == null) continue; // Skip if term wasn't mapped
-                int wid = widObj;
-                
-                double idf = idfCache.getOrDefault(wid, 0.0);
-                Integer tb = tfBody.get(t);
-                Integer tt = tfTitle.get(t);
-                
-                // Handle potential null values from previous loop
-                if (tb == null) tb = 0;
-                if (tt == null) tt = 0;
-
-                // Use log-scaled tf for body and title
-                double tfBodyWeight = (tb > 0) ? (1.0 + Math.log(tb)) : 0.0;
-                double tfTitleWeight = (tt > 0) ? (1.0 + Math.log(tt)) : 0.0;
-
-                if (tfBodyWeight > 0) {
-                    dv.merge(t, tfBodyWeight * idf, Double::sum);
-                }
-                if (tfTitleWeight > 0) {
-                    dv.merge(t, tfTitleWeight * idf * TITLE_BOOST, Double::sum);
+            boolean pruned = false;
+            for (int i = essential - 1; i >= 0 && !pruned; i--) {
+                if (partial + bound[i] <= threshold) {
+                    pruned = true;
+                } else {
+                    contribution[i] = scorers.get(i).score(docId);
+                    partial += contribution[i];
                 }
             }
-            if (dv.isEmpty()) continue;
+            if (pruned) continue;
+            // added up in scorer order, as term at a time does, so both give the same score
+            double score = 0;
+            for (int i = 0; i < n; i++) score += contribution[i];
+            top.offer(docId, score);
+        }
+        return top.results();
+    }
 
-            // sum of all tf-idf weights (with title boost)
-            double score = dv.values().stream().mapToDouble(Double::doubleValue).sum();
-            if (score > 0) scored.add(new ScoredDoc(docId, score));
+    /** Log-scaled tf-idf weight of a term in a page, with the title boost */
+    private static double weight(int tfBody, int tfTitle, double idf) {
+        double weight = 0;
+        if (tfBody > 0)  weight += (1.0 + Math.log(tfBody)) * idf;
+        if (tfTitle > 0) weight += (1.0 + Math.log(tfTitle)) * idf * TITLE_BOOST;
+        return weight;
+    }
+
+    /**
+     * Helper method to look up the postings of a word or phrase in the field it is searched in
+     */
+    private static Clause loadClause(Searcher searcher, Query leaf) {
+        SearchIndex index     = searcher.index();
+        CollectionStats stats = searcher.stats();
+        Clause clause = new Clause();
+        if (leaf instanceof Query.Phrase phrase) {
+            // phrase postings (page -> phrase frequency) are computed per query from the positional index
+            try {
+                if (phrase.field() != Query.Field.TITLE) clause.body  = index.getBodyPhraseFrequencies(phrase.words());
+                if (phrase.field() != Query.Field.BODY)  clause.title = index.getTitlePhraseFrequencies(phrase.words());
+            } catch (IOException e) {
+                // If we can't read postings, treat as no matches
+                System.err.println("Error reading postings for phrase '" + phrase + "': " + e.getMessage());
+                clause.body = clause.title = PostingList.EMPTY;
+            }
+            clause.pages      = PageIdSet.of(clause.body).or(PageIdSet.of(clause.title));
+            clause.df         = clause.pages.cardinality();
+            clause.maxBodyTF  = maxFreq(clause.body);
+            clause.maxTitleTF = maxFreq(clause.title);
+            return clause;
         }
 
-        scored.sort(Comparator.comparing(ScoredDoc::score).reversed());
+        Query.Term term = (Query.Term) leaf;
+        Integer wordId;
+        try { wordId = index.getWordIdIfExists(term.word()); }
+        catch (IOException e) { wordId = null; }
+        if (wordId == null) return clause; // Skip if term doesn't exist in index
+        int wid = wordId;
+
+        // document frequencies and highest frequencies are kept by the index with the collection statistics
+        if (term.field() != Query.Field.TITLE) {
+            clause.body      = cachedPostings(searcher, wid, IndexSegment.BODY);
+            clause.maxBodyTF = stats.maxBodyTF(wid);
+        }
+        if (term.field() != Query.Field.BODY) {
+            clause.title      = cachedPostings(searcher, wid, IndexSegment.TITLE);
+            clause.maxTitleTF = stats.maxTitleTF(wid);
+        }
+        clause.df = switch (term.field()) {
+            case ANY   -> stats.df(wid);
+            case BODY  -> stats.bodyDf(wid);
+            case TITLE -> stats.titleDf(wid);
+        };
+        return clause;
+    }
 
-        List<SearchResult> out = new ArrayList<>();
-        for (int i=0;i<Math.min(scored.size(),MAX_RESULTS);i++) {
-            int id = scored.get(i).docId;
-            InvertedIndexManager.PageInfo info = index.getPageInfo(id);
-            if (info==null) continue;
-            out.add(new SearchResult(id, info.url, info.title, scored.get(i).score, info.lastModifiedDate, info.size));
+    /** Postings of a word in the body or title field, from the postings cache if they are in it */
+    private static PostingList cachedPostings(Searcher searcher, int wordId, int field) {
+        SearchIndex index = searcher.index();
+        try {
+            return searcher.postingsCache().get(wordId, field, searcher.generation(), (w, f) ->
+                    f == IndexSegment.BODY ? index.getBodyPostings(w) : index.getTitlePostings(w));
+        } catch (IOException e) {
+            return PostingList.EMPTY;
         }
-        return out;
     }
 
-    private int getTf(Object postingsObj, int doc) throws IOException {
-        if (postingsObj == null) return 0;
-        @SuppressWarnings("unchecked")
-        Map<Integer, Integer> postings = (Map<Integer, Integer>) postingsObj;
-        return postings.getOrDefault(doc, 0);
+    /** Frequency at a page, moving the cursor forward to it; pages must be visited in increasing order */
+    private static int freqAt(PostingList.Cursor cursor, int doc) {
+        return cursor.advance(doc) && cursor.doc() == doc ? cursor.freq() : 0;
+    }
+
+    /** Highest frequency in a posting list */
+    private static int maxFreq(PostingList postings) {
+        PostingList.Cursor cursor = postings.cursor();
+        int max = 0;
+        while (cursor.next()) max = Math.max(max, cursor.freq());
+        return max;
     }
 
-    private void addTerm(String raw,List<String> sink){
+    /** Stem of a query word, or an empty string for a stop word */
+    private String analyze(String raw) {
         raw = raw.toLowerCase();
-        if (stopStem.isStopWord(raw)) return;
-        String stem = stopStem.stem(raw);
-        if (!stem.isEmpty()) sink.add(stem);
+        if (raw.isEmpty() || stopStem.isStopWord(raw)) return "";
+        return stopStem.stem(raw);
     }
 
-    private String processPhrase(String phrase){
-        return Arrays.stream(phrase.toLowerCase().split("\\s+"))
-                     .filter(w->!stopStem.isStopWord(w))
-                     .map(stopStem::stem)
-                     .filter(s->!s.isEmpty())
-                     .collect(Collectors.joining(" "));
+
+    @Override public void close() {
+        ForkJoinPool pool = parallelPool;
+        if (pool != null) pool.shutdown();
+        searcher.index().close();
     }
 
+    /**
+     * The postings of a word or phrase of a query, in the field it is searched in
+     */
+    private static final class Clause {
+        PostingList body  = PostingList.EMPTY;
+        PostingList title = PostingList.EMPTY;
+        PageIdSet   pages;          // phrases only
+        int         df;
+        int         maxBodyTF;
+        int         maxTitleTF;
+    }
 
-    @Override public void close() { index.close(); }
+    /**
+     * The body and title postings of one query term, walked together over the pages
+     * containing it in either field
+     */
+    private static final class TermScorer {
+        // a little over the true bound, so rounding never prunes a page that makes the top results
+        private static final double BOUND_SLACK = 1 + 1e-9;
+
+        final PostingList bodyPostings;
+        final PostingList titlePostings;
+        final PostingList.Cursor body;
+        final PostingList.Cursor title;
+        final double idf;
+        final double maxScore;      // the most the term can add to the score of a page
+        final int postings;         // length of both lists
+
+        TermScorer(PostingList body, PostingList title, double idf, double maxScore) {
+            this.bodyPostings  = body;
+            this.titlePostings = title;
+            this.postings      = body.size() + title.size();
+            this.body          = body.cursor();
+            this.title         = title.cursor();
+            this.idf           = idf;
+            this.maxScore      = maxScore * BOUND_SLACK;
+            this.body.next();
+            this.title.next();
+        }
 
-    private record ScoredDoc(int docId, double score) { }
+        /** A scorer of the same term on its first page from page from on, for scoring a range of pages */
+        TermScorer(TermScorer other, int from) {
+            this.bodyPostings  = other.bodyPostings;
+            this.titlePostings = other.titlePostings;
+            this.postings      = other.postings;
+            this.body          = bodyPostings.cursor(from);
+            this.title         = titlePostings.cursor(from);
+            this.idf           = other.idf;
+            this.maxScore      = other.maxScore;
+            this.body.advance(from);
+            this.title.advance(from);
+        }
+
+        /** Next page containing the term, NO_MORE_DOCS after the last */
+        int doc() {
+            return Math.min(body.doc(), title.doc());
+        }
+
+        void advance(int target) {
+            body.advance(target);
+            title.advance(target);
+        }
+
+        /** Score of the term in a page, moving forward to it */
+        double score(int doc) {
+            return weight(freqAt(body, doc), freqAt(title, doc), idf);
+        }
+    }
 
     
     public static class SearchResult {
@@ -289,6 +748,7 @@ public class SearchEngine implements AutoCloseable {
         private final long size;
         private String lastModifiedStr;
         private String keywordSummary;
+        private List<Integer> childPageIds = Collections.emptyList();
         
         public SearchResult(int pageId, String url, String title, double score) {
             this(pageId, url, title, score, 0, 0);
@@ -332,5 +792,8 @@ public class SearchEngine implements AutoCloseable {
 
         public void setKeywordSummary(String summary)  { this.keywordSummary = summary; }
         public String getKeywordSummary()              { return keywordSummary; }
+
+        public void setChildPageIds(List<Integer> ids) { this.childPageIds = ids; }
+        public List<Integer> getChildPageIds()         { return childPageIds; }
         }
 }
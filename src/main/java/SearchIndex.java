@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read access to an index, as needed to answer queries. Implemented by the live
+ * database ({@link InvertedIndexManager}) and by read-only snapshots of it
+ * ({@link IndexSnapshot}). Snapshots can be read by any number of threads at
+ * once; the live database cannot (see {@link SynchronizedSearchIndex}).
+ */
+public interface SearchIndex extends AutoCloseable {
+    /**
+     * Get a word ID if the word is in the index, otherwise null
+     */
+    Integer getWordIdIfExists(String word) throws IOException;
+
+    /**
+     * Page IDs and frequencies of a word in page bodies
+     */
+    PostingList getBodyPostings(int wordId) throws IOException;
+
+    /**
+     * Page IDs and frequencies of a word in page titles
+     */
+    PostingList getTitlePostings(int wordId) throws IOException;
+
+    /**
+     * Page IDs and positions of a word in page bodies
+     */
+    PostingList getBodyPositions(int wordId) throws IOException;
+
+    /**
+     * Page IDs and positions of a word in page titles
+     */
+    PostingList getTitlePositions(int wordId) throws IOException;
+
+    List<Integer> getAllPageIds() throws IOException;
+
+    InvertedIndexManager.PageInfo getPageInfo(int pageId) throws IOException;
+
+    /**
+     * Details of several pages in one call, in the order of pageIds (null for a page that
+     * is not indexed)
+     */
+    default List<InvertedIndexManager.PageInfo> getPageInfos(int[] pageIds) throws IOException {
+        List<InvertedIndexManager.PageInfo> infos = new ArrayList<>(pageIds.length);
+        for (int pageId : pageIds) {
+            infos.add(getPageInfo(pageId));
+        }
+        return infos;
+    }
+
+    /**
+     * URL of a page, or null if there is no such page
+     */
+    String getPageUrl(int pageId) throws IOException;
+
+    /**
+     * IDs of up to limit pages that link to a page
+     */
+    List<Integer> getParentPageIds(int pageId, int limit) throws IOException;
+
+    int getMaxTFForPageId(int pageId) throws IOException;
+
+    /**
+     * Page count and per-page statistics of the whole index
+     */
+    CollectionStats getCollectionStats() throws IOException;
+
+    /**
+     * Number that grows whenever postings of the index change, so that caches of
+     * them can tell when they are out of date
+     */
+    long getGeneration() throws IOException;
+
+    /**
+     * Most frequent words of a page with their frequencies, most frequent first
+     */
+    Map<String, Integer> getTopKeywords(int pageId, int limit) throws IOException;
+
+    /**
+     * Get how many times a phrase (a sequence of stemmed words) occurs in the body of each page
+     */
+    default PostingList getBodyPhraseFrequencies(List<String> words) throws IOException {
+        return phraseFrequencies(words, true);
+    }
+
+    /**
+     * Get how many times a phrase (a sequence of stemmed words) occurs in the title of each page
+     */
+    default PostingList getTitlePhraseFrequencies(List<String> words) throws IOException {
+        return phraseFrequencies(words, false);
+    }
+
+    private PostingList phraseFrequencies(List<String> words, boolean body) throws IOException {
+        PostingList[] lists = new PostingList[words.size()];
+        for (int i = 0; i < lists.length; i++) {
+            Integer wordId = getWordIdIfExists(words.get(i));
+            if (wordId == null) {
+                return PostingList.EMPTY;
+            }
+            lists[i] = body ? getBodyPositions(wordId) : getTitlePositions(wordId);
+        }
+        return PostingList.phraseFrequencies(lists);
+    }
+
+    @Override
+    void close();
+}
@@ -10,6 +10,7 @@ import java.util.List;
  */
 public class SearchProgram {
     private static final String DB_NAME = "spider_index";
+    private static final int MAX_SHOWN = 50;
     
     public static void main(String[] args) {
         String dbName = args.length > 0 ? args[0] : DB_NAME;
@@ -37,25 +38,25 @@ public class SearchProgram {
                 }
                 
                 long startTime = System.currentTimeMillis();
-                List<SearchEngine.SearchResult> results = searchEngine.search(query);
+                ResultCache.Results ranked = searchEngine.rank(query);
+                double[] scores = ranked.scores();
+                // only the pages shown are looked up
+                List<SearchEngine.SearchResult> results =
+                        searchEngine.hydrate(ranked, 0, Math.min(scores.length, MAX_SHOWN));
                 long endTime = System.currentTimeMillis();
                 
-                System.out.println("Found " + results.size() + " results (" + (endTime - startTime) + "ms)");
+                System.out.println("Found " + scores.length + " results (" + (endTime - startTime) + "ms)");
                 
-                if (results.isEmpty()) {
+                if (scores.length == 0) {
                     System.out.println("No matching documents found.");
                 } else {
                     // Show the range of scores to help understand score distribution
-                    if (!results.isEmpty()) {
-                        double maxScore = results.get(0).getScore();
-                        double minScore = results.get(results.size() - 1).getScore();
-                        System.out.println("Score range: " + String.format("%.4f", minScore) + " to " + 
-                                           String.format("%.4f", maxScore));
-                    }
+                    System.out.println("Score range: " + String.format("%.4f", scores[scores.length - 1]) + " to " +
+                                       String.format("%.4f", scores[0]));
                     
                     SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
                     
-                    for (int i = 0; i < Math.min(results.size(),50); i++) {
+                    for (int i = 0; i < results.size(); i++) {
                         SearchEngine.SearchResult result = results.get(i);
                         System.out.println((i + 1) + ". " + (result.getTitle().isEmpty() ? result.getUrl() : result.getTitle()));
                         System.out.println("   URL: " + result.getUrl());
@@ -14,17 +14,17 @@ public class SearchServlet extends HttpServlet {
     private static final int MAX_KEYWORDS = 5;
     private static final int MAX_LINKS = 5;
     private static final int MAX_RECENT_SEARCHES = 5;
+    private static final int RESULTS_PER_PAGE = 10;
     
+    // shared by all request threads; page details are read from the index that ranked the results
     private SearchEngine searchEngine;
-    private InvertedIndexManager indexManager;
     
     @Override
     public void init() throws ServletException {
         try {
             searchEngine = new SearchEngine(DB_NAME);
-            indexManager = new InvertedIndexManager(DB_NAME);
         } catch (IOException e) {
-            throw new ServletException("Failed to initialize search engine or index manager", e);
+            throw new ServletException("Failed to initialize search engine", e);
         }
     }
     
@@ -59,16 +59,27 @@ public class SearchServlet extends HttpServlet {
             }
             
             try {
+                int page = 1;
+                try {
+                    page = Math.max(1, Integer.parseInt(request.getParameter("page")));
+                } catch (NumberFormatException e) {
+                    // no page or not a number: the first one
+                }
+
                 long startTime = System.currentTimeMillis();
-                List<SearchEngine.SearchResult> searchResults = searchEngine.search(query);
+                // only the pages on this page of results are looked up
+                SearchEngine.ResultPage resultPage =
+                        searchEngine.search(query, (page - 1) * RESULTS_PER_PAGE, RESULTS_PER_PAGE);
+                List<SearchEngine.SearchResult> searchResults = resultPage.results();
                 long endTime = System.currentTimeMillis();
                 
                 // Measure display processing time
                 long displayStart = System.currentTimeMillis();
                 List<Map<String, Object>> processedResults = new ArrayList<>();
                 SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                SearchIndex index = resultPage.index();
                 
-                // Get additional info for each page using reused indexManager (no try-with-resources)
+                // Get additional info for each page from the index that ranked the results
                 for (SearchEngine.SearchResult result : searchResults) {
                     Map<String, Object> processedResult = new HashMap<>();
                     int pageId = result.getPageId();
@@ -86,7 +97,7 @@ public class SearchServlet extends HttpServlet {
                     processedResult.put("size", result.getSize());
                     
                     // Process keywords
-                    Map<String, Integer> keywords = indexManager.getTopKeywords(pageId, MAX_KEYWORDS);
+                    Map<String, Integer> keywords = index.getTopKeywords(pageId, MAX_KEYWORDS);
                     StringBuilder keywordStr = new StringBuilder();
                     StringBuilder topKeywordsQuery = new StringBuilder();
                     if (keywords != null && !keywords.isEmpty()) {
@@ -107,38 +118,30 @@ public class SearchServlet extends HttpServlet {
                     processedResult.put("formattedKeywords", keywordStr.toString());
                     processedResult.put("topKeywordsQuery", topKeywordsQuery.toString().trim());
                     
-                    // Get page info with child links
-                    InvertedIndexManager.PageInfo pageInfo = indexManager.getPageInfo(pageId);
-                    if (pageInfo != null) {
-                        // Process child links
-                        List<String> childLinks = new ArrayList<>();
-                        for (int i = 0; i < Math.min(pageInfo.childPageIds.size(), MAX_LINKS); i++) {
-                            Integer childId = pageInfo.childPageIds.get(i);
-                            InvertedIndexManager.PageInfo childInfo = indexManager.getPageInfo(childId);
-                            if (childInfo != null) {
-                                childLinks.add(childInfo.url);
-                            }
+                    // Process child links, whose IDs came with the page details
+                    List<Integer> childPageIds = result.getChildPageIds();
+                    List<String> childLinks = new ArrayList<>();
+                    for (int i = 0; i < Math.min(childPageIds.size(), MAX_LINKS); i++) {
+                        String childUrl = index.getPageUrl(childPageIds.get(i));
+                        if (childUrl != null) {
+                            childLinks.add(childUrl);
                         }
-                        processedResult.put("childLinks", childLinks);
-                        
-                        // Process parent links
-                        List<String> parentLinks = new ArrayList<>();
-                        for (Integer possibleParentId : indexManager.getAllPageIds()) {
-                            InvertedIndexManager.PageInfo possibleParent = indexManager.getPageInfo(possibleParentId);
-                            if (possibleParent != null && possibleParent.childPageIds.contains(pageId)) {
-                                parentLinks.add(possibleParent.url);
-                                if (parentLinks.size() >= MAX_LINKS) break;
-                            }
+                    }
+                    processedResult.put("childLinks", childLinks);
+
+                    // Process parent links
+                    List<String> parentLinks = new ArrayList<>();
+                    for (Integer parentId : index.getParentPageIds(pageId, MAX_LINKS)) {
+                        String parentUrl = index.getPageUrl(parentId);
+                        if (parentUrl != null) {
+                            parentLinks.add(parentUrl);
                         }
-                        processedResult.put("parentLinks", parentLinks);
-                    } else {
-                        processedResult.put("childLinks", Collections.emptyList());
-                        processedResult.put("parentLinks", Collections.emptyList());
                     }
+                    processedResult.put("parentLinks", parentLinks);
                     
                     processedResults.add(processedResult);
                 }
-                // end reuse of indexManager
+                // end of page details
                 
                 long displayEnd = System.currentTimeMillis();
                 long displayTime = displayEnd - displayStart;
@@ -146,7 +149,9 @@ public class SearchServlet extends HttpServlet {
                 request.setAttribute("results", processedResults);
                 request.setAttribute("query", query);
                 request.setAttribute("searchTime", (endTime - startTime));
-                request.setAttribute("resultCount", searchResults.size());
+                request.setAttribute("resultCount", resultPage.totalResults());
+                request.setAttribute("page", page);
+                request.setAttribute("totalPages", (resultPage.totalResults() + RESULTS_PER_PAGE - 1) / RESULTS_PER_PAGE);
                 
                 // Pass recent searches to the JSP
                 request.setAttribute("recentSearches", recentSearches);
@@ -172,12 +177,5 @@ public class SearchServlet extends HttpServlet {
                 getServletContext().log("Error closing search engine", e);
             }
         }
-        if (indexManager != null) {
-            try {
-                indexManager.close();
-            } catch (Exception e) {
-                getServletContext().log("Error closing index manager", e);
-            }
-        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wraps an index that is not safe for concurrent readers (the live JDBM database)
+ * so that it can be shared by several threads: each call holds one lock, so
+ * queries against it run one at a time. Searching an exported
+ * {@link IndexSnapshot} needs no wrapper and no lock.
+ */
+public class SynchronizedSearchIndex implements SearchIndex {
+    private final SearchIndex index;
+
+    public SynchronizedSearchIndex(SearchIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public synchronized Integer getWordIdIfExists(String word) throws IOException {
+        return index.getWordIdIfExists(word);
+    }
+
+    @Override
+    public synchronized PostingList getBodyPostings(int wordId) throws IOException {
+        return index.getBodyPostings(wordId);
+    }
+
+    @Override
+    public synchronized PostingList getTitlePostings(int wordId) throws IOException {
+        return index.getTitlePostings(wordId);
+    }
+
+    @Override
+    public synchronized PostingList getBodyPositions(int wordId) throws IOException {
+        return index.getBodyPositions(wordId);
+    }
+
+    @Override
+    public synchronized PostingList getTitlePositions(int wordId) throws IOException {
+        return index.getTitlePositions(wordId);
+    }
+
+    @Override
+    public synchronized List<Integer> getAllPageIds() throws IOException {
+        return index.getAllPageIds();
+    }
+
+    @Override
+    public synchronized InvertedIndexManager.PageInfo getPageInfo(int pageId) throws IOException {
+        return index.getPageInfo(pageId);
+    }
+
+    /**
+     * All of the pages under one lock, rather than one lock per page
+     */
+    @Override
+    public synchronized List<InvertedIndexManager.PageInfo> getPageInfos(int[] pageIds) throws IOException {
+        return index.getPageInfos(pageIds);
+    }
+
+    @Override
+    public synchronized String getPageUrl(int pageId) throws IOException {
+        return index.getPageUrl(pageId);
+    }
+
+    @Override
+    public synchronized List<Integer> getParentPageIds(int pageId, int limit) throws IOException {
+        return index.getParentPageIds(pageId, limit);
+    }
+
+    @Override
+    public synchronized int getMaxTFForPageId(int pageId) throws IOException {
+        return index.getMaxTFForPageId(pageId);
+    }
+
+    @Override
+    public synchronized CollectionStats getCollectionStats() throws IOException {
+        return index.getCollectionStats();
+    }
+
+    @Override
+    public synchronized long getGeneration() throws IOException {
+        return index.getGeneration();
+    }
+
+    @Override
+    public synchronized Map<String, Integer> getTopKeywords(int pageId, int limit) throws IOException {
+        return index.getTopKeywords(pageId, limit);
+    }
+
+    @Override
+    public synchronized void close() {
+        index.close();
+    }
+}
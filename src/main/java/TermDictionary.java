@@ -0,0 +1,271 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * In-memory dictionary from words to word IDs, kept as a front-coded sorted array.
+ *
+ * Words are sorted by their UTF-8 bytes and stored in blocks of BLOCK_SIZE. The first
+ * word of a block is stored in full, every other word as the length of the prefix it
+ * shares with the word before it plus the rest of its bytes, followed by its word ID:
+ *
+ *   block := firstLength firstBytes wordId (sharedLength suffixLength suffixBytes wordId)*
+ *
+ * all lengths and IDs as variable-byte integers. A lookup binary searches the first
+ * words of the blocks and then scans one block, without touching the disk, and
+ * words can be enumerated in order (e.g. all words with a prefix).
+ *
+ * Words added after the array was built are kept in a small sorted map, which is
+ * folded into a new array once it holds more than a fraction of the words.
+ */
+public class TermDictionary {
+    private static final int BLOCK_SIZE = 16;
+    private static final int MIN_PENDING_BEFORE_REBUILD = 1024;
+
+    private byte[] data = new byte[0];
+    private int[] blockOffsets = new int[0];
+    private int size;
+    private final TreeMap<byte[], Integer> pending = new TreeMap<>(Arrays::compareUnsigned);
+
+    /**
+     * Build a dictionary from a map of words to word IDs
+     */
+    public TermDictionary(Map<String, Integer> wordIds) {
+        for (Map.Entry<String, Integer> entry : wordIds.entrySet()) {
+            pending.put(utf8(entry.getKey()), entry.getValue());
+        }
+        rebuild();
+    }
+
+    /**
+     * Number of words in the dictionary
+     */
+    public int size() {
+        return size + pending.size();
+    }
+
+    /**
+     * Word ID of a word, or -1 if the word is not in the dictionary
+     */
+    public int get(String word) {
+        byte[] key = utf8(word);
+        Integer id = pending.isEmpty() ? null : pending.get(key);
+        if (id != null) return id;
+        return find(key);
+    }
+
+    /**
+     * Add a new word; it must not be in the dictionary yet
+     */
+    public void add(String word, int wordId) {
+        pending.put(utf8(word), wordId);
+        if (pending.size() > Math.max(MIN_PENDING_BEFORE_REBUILD, size / 8)) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Visit every word starting with prefix, with its word ID, in sorted order
+     */
+    public void forEachWithPrefix(String prefix, ObjIntConsumer<String> visitor) {
+        byte[] from = utf8(prefix);
+        forEach(from, (word, id) -> startsWith(word, from), visitor);
+    }
+
+    /**
+     * Visit every word w with from <= w < to, with its word ID, in sorted order
+     */
+    public void forEachInRange(String from, String to, ObjIntConsumer<String> visitor) {
+        byte[] toKey = utf8(to);
+        forEach(utf8(from), (word, id) -> Arrays.compareUnsigned(word, toKey) < 0, visitor);
+    }
+
+    private interface Continue {
+        boolean test(byte[] word, int id);
+    }
+
+    /**
+     * Helper method to walk the array and the pending words together in order, starting
+     * at the first word not below from and stopping at the first word that fails the test
+     */
+    private void forEach(byte[] from, Continue test, ObjIntConsumer<String> visitor) {
+        Iterator<Map.Entry<byte[], Integer>> extra = pending.tailMap(from, true).entrySet().iterator();
+        Map.Entry<byte[], Integer> nextExtra = extra.hasNext() ? extra.next() : null;
+
+        int block = Math.max(0, findBlock(from));
+        BlockReader reader = new BlockReader();
+        for (; block < blockOffsets.length; block++) {
+            reader.start(block);
+            while (reader.next()) {
+                if (Arrays.compareUnsigned(reader.word, 0, reader.length, from, 0, from.length) < 0) continue;
+                byte[] word = Arrays.copyOf(reader.word, reader.length);
+                while (nextExtra != null && Arrays.compareUnsigned(nextExtra.getKey(), word) < 0) {
+                    if (!test.test(nextExtra.getKey(), nextExtra.getValue())) return;
+                    visitor.accept(string(nextExtra.getKey()), nextExtra.getValue());
+                    nextExtra = extra.hasNext() ? extra.next() : null;
+                }
+                if (!test.test(word, reader.id)) return;
+                visitor.accept(string(word), reader.id);
+            }
+        }
+        while (nextExtra != null && test.test(nextExtra.getKey(), nextExtra.getValue())) {
+            visitor.accept(string(nextExtra.getKey()), nextExtra.getValue());
+            nextExtra = extra.hasNext() ? extra.next() : null;
+        }
+    }
+
+    private int find(byte[] key) {
+        int block = findBlock(key);
+        if (block < 0) return -1;
+        BlockReader reader = new BlockReader();
+        reader.start(block);
+        while (reader.next()) {
+            int cmp = Arrays.compareUnsigned(reader.word, 0, reader.length, key, 0, key.length);
+            if (cmp == 0) return reader.id;
+            if (cmp > 0) return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Helper method to find the last block whose first word is not above key, -1 if there is none
+     */
+    private int findBlock(byte[] key) {
+        int low = 0;
+        int high = blockOffsets.length - 1;
+        int found = -1;
+        int[] offset = new int[1];
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            offset[0] = blockOffsets[mid];
+            int length = readVInt(data, offset);
+            if (Arrays.compareUnsigned(data, offset[0], offset[0] + length, key, 0, key.length) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Decodes the words of one block in order into a reused buffer
+     */
+    private class BlockReader {
+        byte[] word = new byte[32];
+        int length;
+        int id;
+        private final int[] offset = new int[1];
+        private int remaining;
+        private boolean first;
+
+        void start(int block) {
+            offset[0] = blockOffsets[block];
+            remaining = Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+            first = true;
+        }
+
+        boolean next() {
+            if (remaining == 0) return false;
+            int shared = first ? 0 : readVInt(data, offset);
+            first = false;
+            int suffix = readVInt(data, offset);
+            if (word.length < shared + suffix) {
+                word = Arrays.copyOf(word, Math.max(word.length * 2, shared + suffix));
+            }
+            System.arraycopy(data, offset[0], word, shared, suffix);
+            offset[0] += suffix;
+            length = shared + suffix;
+            id = readVInt(data, offset);
+            remaining--;
+            return true;
+        }
+    }
+
+    /**
+     * Fold the pending words into a new front-coded array
+     */
+    private void rebuild() {
+        List<byte[]> words = new ArrayList<>(size + pending.size());
+        List<Integer> ids = new ArrayList<>(size + pending.size());
+        forEach(new byte[0], (word, id) -> true, (word, id) -> {
+            words.add(utf8(word));
+            ids.add(id);
+        });
+
+        ByteArrayBuilder out = new ByteArrayBuilder();
+        int[] offsets = new int[(words.size() + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        byte[] previous = null;
+        for (int i = 0; i < words.size(); i++) {
+            byte[] word = words.get(i);
+            if (i % BLOCK_SIZE == 0) {
+                offsets[i / BLOCK_SIZE] = out.length;
+                out.writeVInt(word.length);
+                out.write(word, 0, word.length);
+            } else {
+                int shared = Arrays.mismatch(previous, word);
+                if (shared < 0) shared = word.length;
+                out.writeVInt(shared);
+                out.writeVInt(word.length - shared);
+                out.write(word, shared, word.length - shared);
+            }
+            out.writeVInt(ids.get(i));
+            previous = word;
+        }
+        data = Arrays.copyOf(out.bytes, out.length);
+        blockOffsets = offsets;
+        size = words.size();
+        pending.clear();
+    }
+
+    private static boolean startsWith(byte[] word, byte[] prefix) {
+        return word.length >= prefix.length && Arrays.equals(word, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] utf8) {
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static int readVInt(byte[] in, int[] offset) {
+        int i = offset[0];
+        byte b = in[i++];
+        int value = b & 0x7F;
+        for (int shift = 7; b < 0; shift += 7) {
+            b = in[i++];
+            value |= (b & 0x7F) << shift;
+        }
+        offset[0] = i;
+        return value;
+    }
+
+    private static class ByteArrayBuilder {
+        byte[] bytes = new byte[1024];
+        int length;
+
+        void write(byte[] b, int from, int count) {
+            ensure(count);
+            System.arraycopy(b, from, bytes, length, count);
+            length += count;
+        }
+
+        void writeVInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void ensure(int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * The best K pages of a query, kept in a bounded min-heap: the root is the weakest
+ * page kept, the one a new page has to beat. Pages rank by score, higher first,
+ * and equal scores by page ID, lower first.
+ */
+public final class TopScores {
+    private final int k;
+    private final int[] pageIds;
+    private final double[] scores;
+    private int size;
+
+    public TopScores(int k) {
+        this.k = k;
+        this.pageIds = new int[k];
+        this.scores = new double[k];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == k;
+    }
+
+    /**
+     * Score a page must beat to be kept: the weakest score kept once K pages are
+     * kept, before that 0 (only pages with a positive score are kept). A page
+     * scoring exactly this is only kept if it has a lower ID than the weakest page.
+     */
+    public double threshold() {
+        return size < k ? 0 : scores[0];
+    }
+
+    /**
+     * Offer a page; returns whether it was kept
+     */
+    public boolean offer(int pageId, double score) {
+        if (score <= 0 || k == 0) {
+            return false;
+        }
+        if (size < k) {
+            pageIds[size] = pageId;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (!better(pageId, score, pageIds[0], scores[0])) {
+            return false;
+        }
+        pageIds[0] = pageId;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * The pages kept, best first; empties the heap
+     */
+    public ResultCache.Results results() {
+        int n = size;
+        int[] topPageIds = new int[n];
+        double[] topScores = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            topPageIds[i] = pageIds[0];
+            topScores[i] = scores[0];
+            size--;
+            pageIds[0] = pageIds[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        return new ResultCache.Results(topPageIds, topScores);
+    }
+
+    private static boolean better(int pageId, double score, int otherPageId, double otherScore) {
+        return score > otherScore || (score == otherScore && pageId < otherPageId);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!better(pageIds[parent], scores[parent], pageIds[i], scores[i])) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int weakest = i;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+                if (better(pageIds[weakest], scores[weakest], pageIds[child], scores[child])) {
+                    weakest = child;
+                }
+            }
+            if (weakest == i) return;
+            swap(i, weakest);
+            i = weakest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int pageId = pageIds[i];
+        pageIds[i] = pageIds[j];
+        pageIds[j] = pageId;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
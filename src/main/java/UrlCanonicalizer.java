@@ -0,0 +1,76 @@
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+
+/**
+ * Normalizes URLs so that different spellings of the same page map to one key.
+ *
+ * The scheme and host are lower-cased, default ports, fragments, dot segments
+ * and trailing slashes are removed, and query parameters are sorted. Only http
+ * and https URLs are crawlable; anything else canonicalizes to null.
+ */
+public final class UrlCanonicalizer {
+
+    private UrlCanonicalizer() { }
+
+    /**
+     * Return the canonical form of the URL, or null if it cannot be crawled
+     */
+    public static String canonicalize(String url) {
+        if (url == null || url.isBlank()) return null;
+        url = url.trim();
+
+        URI uri;
+        try {
+            uri = new URI(url).normalize();
+        } catch (URISyntaxException e) {
+            // jsoup can hand back URLs with characters URI refuses; keep them, minus the fragment
+            int hash = url.indexOf('#');
+            String lenient = hash >= 0 ? url.substring(0, hash) : url;
+            String lower = lenient.toLowerCase();
+            return lower.startsWith("http://") || lower.startsWith("https://") ? lenient : null;
+        }
+
+        String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase();
+        if (!"http".equals(scheme) && !"https".equals(scheme)) return null;
+
+        String host = uri.getHost();
+        if (host == null) return null;
+        host = host.toLowerCase();
+
+        int port = uri.getPort();
+        if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+            port = -1;
+        }
+
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty()) {
+            path = "/";
+        } else if (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+
+        StringBuilder sb = new StringBuilder(url.length());
+        sb.append(scheme).append("://");
+        if (uri.getRawUserInfo() != null) {
+            sb.append(uri.getRawUserInfo()).append('@');
+        }
+        sb.append(host);
+        if (port != -1) {
+            sb.append(':').append(port);
+        }
+        sb.append(path);
+
+        String query = uri.getRawQuery();
+        if (query != null && !query.isEmpty()) {
+            String[] params = Arrays.stream(query.split("&"))
+                    .filter(p -> !p.isEmpty())
+                    .sorted()
+                    .toArray(String[]::new);
+            if (params.length > 0) {
+                sb.append('?').append(String.join("&", params));
+            }
+        }
+        return sb.toString();
+    }
+}
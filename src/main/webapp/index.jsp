@@ -1,5 +1,7 @@
 <%@ page contentType="text/html;charset=UTF-8" language="java" %>
 <%@ page import="java.util.*" %>
+<%@ page import="java.net.URLEncoder" %>
+<%@ page import="java.nio.charset.StandardCharsets" %>
 
 <!DOCTYPE html>
 <html>
@@ -57,6 +59,9 @@
         if (results != null && !results.isEmpty()) { 
             Integer resultCount = (Integer) request.getAttribute("resultCount");
             Long searchTime = (Long) request.getAttribute("searchTime");
+            int currentPage = (Integer) request.getAttribute("page");
+            int totalPages = (Integer) request.getAttribute("totalPages");
+            String pageLink = "search?query=" + URLEncoder.encode((String) request.getAttribute("query"), StandardCharsets.UTF_8) + "&page=";
         %>
             <div class="result-stats">
                 <i class="fas fa-chart-bar"></i> Found <strong><%= resultCount %></strong> results (<%= searchTime %> ms)
@@ -170,6 +175,18 @@
                     </div>
                 <% } %>
             </div>
+
+            <% if (totalPages > 1) { %>
+                <div class="pagination">
+                    <% if (currentPage > 1) { %>
+                        <a class="page-link" href="<%= pageLink + (currentPage - 1) %>"><i class="fas fa-chevron-left"></i> Previous</a>
+                    <% } %>
+                    <span class="current-page">Page <%= currentPage %> of <%= totalPages %></span>
+                    <% if (currentPage < totalPages) { %>
+                        <a class="page-link" href="<%= pageLink + (currentPage + 1) %>">Next <i class="fas fa-chevron-right"></i></a>
+                    <% } %>
+                </div>
+            <% } %>
             
         <% } else if (request.getParameter("query") != null) { %>
             <div class="no-results">
@@ -204,6 +221,11 @@
                         <h3>Use Quotes for Phrases</h3>
                         <p>For example: "hong kong" university</p>
                     </div>
+                    <div class="help-card">
+                        <div class="help-icon"><i class="fas fa-filter"></i></div>
+                        <h3>Combine and Narrow</h3>
+                        <p>For example: title:(hong kong) AND NOT "stock market", +university -sports</p>
+                    </div>
                     <div class="help-card">
                         <div class="help-icon"><i class="fas fa-search"></i></div>
                         <h3>Search</h3>
@@ -0,0 +1,127 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+public class InvertedIndexManagerTest {
+    private static final int WORDS = 20;
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(7);
+    // what was last indexed for each page: page ID -> {title terms, body terms}
+    private final Map<Integer, List<List<String>>> pages = new TreeMap<>();
+
+    @Test
+    public void mergedSegmentsHoldTheBufferedPostings() throws IOException {
+        String dbName = dir.resolve("index").toString();
+        InvertedIndexManager index = new InvertedIndexManager(dbName);
+        // ten flushes of a few pages each make ten small segments, which are merged
+        for (int flush = 0; flush < 10; flush++) {
+            for (int i = 0; i < 3; i++) {
+                int pageId = index.addPage("http://example.com/" + flush + "/" + i, "page", 0, 0);
+                indexPage(index, pageId);
+            }
+            if (flush > 0) {
+                // re-index a page of an earlier segment, leaving a deleted posting behind
+                indexPage(index, random.nextInt(3 * flush));
+            }
+            assertPostings(index);      // from the buffer and the segments
+            index.flush();
+        }
+        index.close();
+
+        index = new InvertedIndexManager(dbName);
+        try {
+            assertEquals(1, index.getSegmentCount());
+            assertPostings(index);
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void interruptedCloseGivesUpTheRunningMerge() throws IOException {
+        String dbName = dir.resolve("index").toString();
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            InvertedIndexManager index = new InvertedIndexManager(dbName);
+            for (int flush = 0; flush < 10; flush++) {
+                for (int i = 0; i < 20; i++) {
+                    int pageId = index.addPage("http://example.com/" + flush + "/" + i, "page", 0, 0);
+                    indexPage(index, pageId);
+                }
+                index.flush();      // the tenth flush starts a merge
+            }
+            Thread.currentThread().interrupt();
+            try {
+                index.close();
+            } finally {
+                Thread.interrupted();
+            }
+        });
+
+        // whether or not the merge was given up, nothing indexed is lost
+        InvertedIndexManager index = new InvertedIndexManager(dbName);
+        try {
+            assertPostings(index);
+        } finally {
+            index.close();
+        }
+    }
+
+    private void indexPage(InvertedIndexManager index, int pageId) throws IOException {
+        List<String> title = randomTerms(1 + random.nextInt(3));
+        List<String> body = randomTerms(1 + random.nextInt(30));
+        index.indexDocument(pageId, title, body);
+        pages.put(pageId, List.of(title, body));
+    }
+
+    private List<String> randomTerms(int n) {
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            terms.add("w" + random.nextInt(WORDS));
+        }
+        return terms;
+    }
+
+    private void assertPostings(InvertedIndexManager index) throws IOException {
+        for (int w = 0; w < WORDS; w++) {
+            String word = "w" + w;
+            Integer wordId = index.getWordIdIfExists(word);
+            if (wordId == null) continue;
+            assertArrayEquals(expected(word, 1, true).bytes(), index.getBodyPositions(wordId).bytes(), word);
+            assertArrayEquals(expected(word, 0, true).bytes(), index.getTitlePositions(wordId).bytes(), word);
+            assertArrayEquals(expected(word, 1, false).bytes(), index.getBodyPostings(wordId).bytes(), word);
+            assertArrayEquals(expected(word, 0, false).bytes(), index.getTitlePostings(wordId).bytes(), word);
+        }
+        assertNotNull(index.getWordIdIfExists("w0"));
+    }
+
+    /** The postings of a word in a field (0: title, 1: body) of the pages as last indexed */
+    private PostingList expected(String word, int field, boolean positional) {
+        PostingList.Builder builder = new PostingList.Builder(positional);
+        for (Map.Entry<Integer, List<List<String>>> page : pages.entrySet()) {
+            List<String> terms = page.getValue().get(field);
+            int[] positions = new int[terms.size()];
+            int freq = 0;
+            for (int i = 0; i < terms.size(); i++) {
+                if (terms.get(i).equals(word)) positions[freq++] = i;
+            }
+            if (freq > 0) builder.add(page.getKey(), freq, positions);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,51 @@
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.StreamParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PageExtractorTest {
+
+    private static HtmlParser.Page extract(String html) throws IOException {
+        HtmlParser.Page page = new HtmlParser.Page("http://example.com/dir/page.html", 0);
+        try (StreamParser parser = new StreamParser(Parser.htmlParser()).parse(html, page.url)) {
+            PageExtractor.extract(parser, page);
+        }
+        return page;
+    }
+
+    @Test
+    public void nestedBlocksComeOutInDocumentOrder() throws IOException {
+        assertEquals(List.of("Hong", "Kong"), extract("<body><div>Hong <p>Kong</p></div></body>").bodyWords);
+        assertEquals(List.of("a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k"),
+                extract("<body>a <div>b <b>c</b> <p>d</p> e <ul><li>f</li></ul> g</div> h <p>i<br>j</p> k</body>").bodyWords);
+        assertEquals(List.of("x", "y", "z", "w", "v"),
+                extract("<body><div>x<div>y<div>z</div>w</div>v</div></body>").bodyWords);
+    }
+
+    @Test
+    public void inlineElementsDoNotSplitABlock() throws IOException {
+        assertEquals(List.of("Hong", "Kong", "University"),
+                extract("<body><p>Hong <em>Kong</em> <a href=\"u\">University</a></p></body>").bodyWords);
+    }
+
+    @Test
+    public void headTextGoesToTheTitle() throws IOException {
+        HtmlParser.Page page = extract("<html><head><title>Test Page</title></head><body><p>body text</p></body></html>");
+        assertEquals("Test Page", page.title);
+        assertEquals(List.of("Test", "Page"), page.titleWords);
+        assertEquals(List.of("body", "text"), page.bodyWords);
+    }
+
+    @Test
+    public void linksAreAbsolute() throws IOException {
+        HtmlParser.Page page = extract("<body><a href=\"other.html\">one</a> <div><a href=\"/root.html\">two</a> "
+                + "<a href=\"https://example.org/\">three</a> <a name=\"anchor\">four</a></div></body>");
+        assertEquals(List.of("http://example.com/dir/other.html", "http://example.com/root.html", "https://example.org/"),
+                page.links);
+        assertEquals(List.of("one", "two", "three", "four"), page.bodyWords);
+    }
+}
@@ -0,0 +1,116 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PageIdSetTest {
+    private static final int CHUNK = 1 << 16;
+
+    private final Random random = new Random(11);
+
+    /**
+     * Random pages over four chunks with the given chance of each page being in the set:
+     * under 4096 pages a chunk is kept as an array, over it as a bitmap
+     */
+    private BitSet randomPages(double... density) {
+        BitSet pages = new BitSet();
+        for (int chunk = 0; chunk < density.length; chunk++) {
+            for (int low = 0; low < CHUNK; low++) {
+                if (random.nextDouble() < density[chunk]) pages.set(chunk * CHUNK + low);
+            }
+        }
+        return pages;
+    }
+
+    private static PageIdSet set(BitSet pages) {
+        PageIdSet.Builder builder = new PageIdSet.Builder();
+        pages.stream().forEach(builder::add);
+        return builder.build();
+    }
+
+    private static void assertSame(BitSet expected, PageIdSet actual) {
+        assertEquals(expected.cardinality(), actual.cardinality());
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        int page = -1;
+        for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i + 1)) {
+            page = actual.nextPage(page + 1);
+            assertEquals(i, page);
+            assertTrue(actual.contains(i));
+        }
+        assertEquals(PostingList.NO_MORE_DOCS, actual.nextPage(page + 1));
+    }
+
+    @Test
+    public void keepsThePagesItWasBuiltFrom() {
+        for (double[] density : new double[][]{{0.001, 0, 0.5, 0.06}, {1, 0.0001}, {}}) {
+            BitSet pages = randomPages(density);
+            PageIdSet set = set(pages);
+            assertSame(pages, set);
+            for (int i = 0; i < 1_000; i++) {
+                int page = random.nextInt(density.length * CHUNK + 1);
+                assertEquals(pages.get(page), set.contains(page));
+            }
+        }
+    }
+
+    @Test
+    public void andOrAcrossArraysAndBitmaps() {
+        // each chunk pairs a different kind of container: array/array, array/bitmap,
+        // bitmap/array, bitmap/bitmap, and chunks only one of the sets has
+        double[][] densities = {
+                {0.01, 0.01, 0.5, 0.5, 0.2, 0},
+                {0.02, 0.7, 0.03, 0.4, 0, 0.001}};
+        for (int round = 0; round < 5; round++) {
+            BitSet a = randomPages(densities[0]);
+            BitSet b = randomPages(densities[1]);
+
+            BitSet and = (BitSet) a.clone();
+            and.and(b);
+            BitSet or = (BitSet) a.clone();
+            or.or(b);
+
+            assertSame(and, set(a).and(set(b)));
+            assertSame(and, set(b).and(set(a)));
+            assertSame(or, set(a).or(set(b)));
+            assertSame(or, set(b).or(set(a)));
+        }
+    }
+
+    @Test
+    public void bitmapsWhoseIntersectionIsSmall() {
+        // two dense chunks that overlap in a few pages only
+        BitSet a = new BitSet();
+        BitSet b = new BitSet();
+        a.set(0, 30_000);
+        b.set(29_990, 60_000);
+        BitSet and = (BitSet) a.clone();
+        and.and(b);
+
+        PageIdSet result = set(a).and(set(b));
+        assertSame(and, result);
+        assertSame(a, result.or(set(a)));
+    }
+
+    @Test
+    public void emptySets() {
+        PageIdSet set = set(randomPages(0.3));
+        assertTrue(set.and(PageIdSet.EMPTY).isEmpty());
+        assertEquals(set.cardinality(), set.or(PageIdSet.EMPTY).cardinality());
+        assertFalse(PageIdSet.EMPTY.contains(0));
+        assertEquals(PostingList.NO_MORE_DOCS, PageIdSet.EMPTY.nextPage(0));
+    }
+
+    @Test
+    public void builtFromAPostingList() {
+        PostingList postings = new PostingList.Builder(false).add(3, 1).add(70_000, 2).add(70_001, 1).build();
+        PageIdSet set = PageIdSet.of(postings);
+        BitSet expected = new BitSet();
+        expected.set(3);
+        expected.set(70_000, 70_002);
+        assertSame(expected, set);
+    }
+}
@@ -0,0 +1,169 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PostingListTest {
+
+    @Test
+    public void frequenciesSurviveEncoding() {
+        // gaps and frequencies that need one to five bytes each
+        int[] pages = {0, 1, 127, 128, 16_383, 16_384, 2_097_152, Integer.MAX_VALUE - 1};
+        int[] freqs = {1, 127, 128, 300, 16_384, 1, 2_097_152, 5};
+        PostingList.Builder builder = new PostingList.Builder(false);
+        for (int i = 0; i < pages.length; i++) {
+            builder.add(pages[i], freqs[i]);
+        }
+        PostingList list = PostingList.decode(builder.build().bytes());
+
+        assertEquals(pages.length, list.size());
+        assertFalse(list.hasPositions());
+        PostingList.Cursor cursor = list.cursor();
+        assertEquals(-1, cursor.doc());
+        for (int i = 0; i < pages.length; i++) {
+            assertTrue(cursor.next());
+            assertEquals(pages[i], cursor.doc());
+            assertEquals(freqs[i], cursor.freq());
+        }
+        assertFalse(cursor.next());
+        assertEquals(PostingList.NO_MORE_DOCS, cursor.doc());
+
+        assertEquals(128, list.freq(127));
+        assertEquals(0, list.freq(2));
+    }
+
+    @Test
+    public void positionsSurviveEncoding() {
+        PostingList list = new PostingList.Builder(true)
+                .add(3, new int[]{0, 5, 200})
+                .add(9, new int[]{70_000})
+                .add(1_000, new int[]{1, 2, 3, 4})
+                .build();
+        PostingList decoded = PostingList.decode(list.bytes());
+
+        assertTrue(decoded.hasPositions());
+        PostingList.Cursor cursor = decoded.cursor();
+        int[] buffer = new int[4];
+        assertTrue(cursor.next());
+        assertEquals(3, cursor.positions(buffer));
+        assertArrayEquals(new int[]{0, 5, 200}, Arrays.copyOf(buffer, 3));
+        // positions left unread are skipped over by next()
+        assertTrue(cursor.next());
+        assertEquals(9, cursor.doc());
+        assertTrue(cursor.next());
+        assertEquals(1_000, cursor.doc());
+        assertEquals(4, cursor.positions(buffer));
+        assertArrayEquals(new int[]{1, 2, 3, 4}, buffer);
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void emptyListHasNoPostings() {
+        PostingList list = PostingList.decode(PostingList.EMPTY.bytes());
+        assertTrue(list.isEmpty());
+        assertFalse(list.cursor().next());
+    }
+
+    @Test
+    public void pagesMustBeAddedInOrder() {
+        PostingList.Builder builder = new PostingList.Builder(false).add(5, 1);
+        assertThrows(IllegalArgumentException.class, () -> builder.add(5, 1));
+        assertThrows(IllegalStateException.class, () -> new PostingList.Builder(true).add(1, 1));
+    }
+
+    @Test
+    public void randomListsRoundTrip() {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            List<int[]> postings = new ArrayList<>();
+            PostingList.Builder builder = new PostingList.Builder(false);
+            int page = -1;
+            for (int i = random.nextInt(1_000); i > 0; i--) {
+                page += 1 + random.nextInt(random.nextBoolean() ? 10 : 100_000);
+                int freq = 1 + random.nextInt(1_000);
+                postings.add(new int[]{page, freq});
+                builder.add(page, freq);
+            }
+            PostingList.Cursor cursor = PostingList.decode(builder.build().bytes()).cursor();
+            for (int[] posting : postings) {
+                assertTrue(cursor.next());
+                assertEquals(posting[0], cursor.doc());
+                assertEquals(posting[1], cursor.freq());
+            }
+            assertFalse(cursor.next());
+        }
+    }
+
+    @Test
+    public void mergeLeavesOutExcludedPages() {
+        PostingList a = new PostingList.Builder(false).add(1, 2).add(4, 1).add(7, 3).build();
+        PostingList b = new PostingList.Builder(false).add(2, 5).add(5, 1).build();
+        BitSet deleted = new BitSet();
+        deleted.set(4);
+
+        PostingList merged = PostingList.merge(new PostingList[]{a, b}, new BitSet[]{deleted, null}, false);
+
+        PostingList expected = new PostingList.Builder(false).add(1, 2).add(2, 5).add(5, 1).add(7, 3).build();
+        assertArrayEquals(expected.bytes(), merged.bytes());
+    }
+
+    @Test
+    public void cursorStartsNearTargetThroughTheSkipTable() {
+        Random random = new Random(9);
+        int[] pages = new int[5_000];     // many entries of the skip table
+        PostingList.Builder builder = new PostingList.Builder(true);
+        for (int i = 0, page = 0; i < pages.length; i++) {
+            page += 1 + random.nextInt(20);
+            pages[i] = page;
+            builder.add(page, new int[]{i});
+        }
+        PostingList list = builder.build();
+
+        for (int round = 0; round < 2_000; round++) {
+            int target = random.nextInt(pages[pages.length - 1] + 10);
+            PostingList.Cursor cursor = list.cursor(target);
+            assertTrue(cursor.doc() < target);
+            if (target > pages[128]) {
+                assertTrue(cursor.doc() >= pages[0], "skipped ahead");
+            }
+
+            int expected = Arrays.binarySearch(pages, target);
+            if (expected < 0) expected = -expected - 1;
+            if (expected == pages.length) {
+                assertFalse(cursor.advance(target));
+                assertEquals(PostingList.NO_MORE_DOCS, cursor.doc());
+                continue;
+            }
+            assertTrue(cursor.advance(target));
+            assertEquals(pages[expected], cursor.doc());
+            // the positions of the posting reached are its own
+            int[] buffer = new int[1];
+            assertEquals(1, cursor.positions(buffer));
+            assertEquals(expected, buffer[0]);
+            // and the rest of the list follows
+            if (expected + 1 < pages.length) {
+                assertTrue(cursor.next());
+                assertEquals(pages[expected + 1], cursor.doc());
+            }
+        }
+    }
+
+    @Test
+    public void cursorAtTheStartOrOnAShortListDoesNotSkip() {
+        PostingList list = new PostingList.Builder(false).add(5, 1).add(9, 2).build();
+        PostingList.Cursor cursor = list.cursor(9);
+        assertEquals(-1, cursor.doc());
+        assertTrue(cursor.advance(9));
+        assertEquals(2, cursor.freq());
+        assertEquals(-1, list.cursor(0).doc());
+    }
+}
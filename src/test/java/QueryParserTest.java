@@ -0,0 +1,103 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class QueryParserTest {
+
+    /** Lower cases a word, with "the" and "a" as the only stop words */
+    private static Query parse(String raw) {
+        return QueryParser.parse(raw, word -> {
+            String lower = word.toLowerCase();
+            return lower.equals("the") || lower.equals("a") ? "" : lower;
+        });
+    }
+
+    private static void assertParsed(String expected, String raw) {
+        assertEquals(expected, String.valueOf(parse(raw)), raw);
+    }
+
+    @Test
+    public void wordsSideBySideAreOptional() {
+        assertParsed("x y", "x y");
+        assertParsed("x", "x");
+        assertParsed("x", "the x a");
+    }
+
+    @Test
+    public void andBindsTighterThanOr() {
+        assertParsed("(+x +y) z", "x AND y OR z");
+        assertParsed("(+y +z) x", "x OR y AND z");
+        assertParsed("(+w +z) (+x +y)", "x AND y OR z AND w");
+        assertParsed("x y z", "x OR y z");
+    }
+
+    @Test
+    public void notBindsTighterThanAnd() {
+        assertParsed("+x -y", "x AND NOT y");
+        assertParsed("-y x", "x NOT y");
+        assertParsed("-x", "NOT x");
+        assertParsed("x", "NOT NOT x");
+        assertParsed("-x -y", "NOT (x OR y)");
+    }
+
+    @Test
+    public void parenthesesGroup() {
+        assertParsed("+(x y) +z", "(x OR y) AND z");
+        assertParsed("-x -y z", "-(x OR y) z");
+    }
+
+    @Test
+    public void requiredAndExcludedClauses() {
+        assertParsed("+z -y x", "x -y +z");
+        assertParsed("-x y", "--x y");
+    }
+
+    @Test
+    public void operatorsAreUpperCaseOnly() {
+        assertParsed("and x y", "x and y");
+    }
+
+    @Test
+    public void fieldsApplyToAWordPhraseOrGroup() {
+        assertParsed("title:x", "Title:X");
+        assertParsed("body:\"y z\" title:x", "title:x body:\"y z\"");
+        assertParsed("title:x title:y z", "title:(x OR y) z");
+    }
+
+    @Test
+    public void aBarePhraseIsRequiredButLenient() {
+        Query.Bool query = (Query.Bool) parse("\"hong kong\" univ");
+        Query.Phrase phrase = (Query.Phrase) query.must().get(0);
+        assertEquals(List.of("hong", "kong"), phrase.words());
+        assertTrue(phrase.lenient());
+        assertEquals(List.of(new Query.Term("univ", Query.Field.ANY)), query.should());
+
+        Query.Phrase required = (Query.Phrase) parse("+\"hong kong\"");
+        assertFalse(required.lenient());
+    }
+
+    @Test
+    public void malformedInputIsRepaired() {
+        assertParsed("+(y z) +x", "x AND (y OR z");     // missing closing parenthesis
+        assertParsed("x y", "x ) AND OR y");            // stray parenthesis and operators
+        assertParsed("\"unclosed quote", "\"unclosed quote");
+        assertParsed("x", "x AND");
+        assertParsed("x", "OR x");
+        assertParsed("x", "(((x");
+    }
+
+    @Test
+    public void nothingToSearchForIsNull() {
+        assertNull(parse(""));
+        assertNull(parse("   "));
+        assertNull(parse("the"));
+        assertNull(parse("\"the a\""));
+        assertNull(parse("AND OR NOT"));
+        assertNull(parse("()"));
+    }
+}
@@ -0,0 +1,108 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SearchEngineTest {
+    private static final int PAGES = 20_000;
+    private static final List<String> WORDS = List.of("xa", "xb", "xc", "xd", "xe");
+    private static final double[] DENSITY = {0.5, 0.3, 0.15, 0.05, 0.01};
+
+    /**
+     * An index of the five words over PAGES pages, each word in a page with its own density,
+     * where page p has the URL site + p
+     */
+    private static SearchIndex syntheticIndex(String site) {
+        Random random = new Random(5);
+        PostingList[] body = new PostingList[WORDS.size()];
+        PostingList[] title = new PostingList[WORDS.size()];
+        CollectionStats.Builder stats = new CollectionStats.Builder();
+        for (int pageId = 0; pageId < PAGES; pageId++) {
+            stats.addPage(pageId);
+            stats.set(pageId, 5, 100, 10);
+        }
+        for (int w = 0; w < WORDS.size(); w++) {
+            PostingList.Builder bodyBuilder = new PostingList.Builder(false);
+            PostingList.Builder titleBuilder = new PostingList.Builder(false);
+            for (int pageId = 0; pageId < PAGES; pageId++) {
+                int bodyTF = random.nextDouble() < DENSITY[w] ? 1 + random.nextInt(8) : 0;
+                int titleTF = random.nextDouble() < DENSITY[w] / 10 ? 1 : 0;
+                if (bodyTF > 0) bodyBuilder.add(pageId, bodyTF);
+                if (titleTF > 0) titleBuilder.add(pageId, titleTF);
+                if (bodyTF + titleTF > 0) stats.addTerm(w, bodyTF, titleTF);
+            }
+            body[w] = bodyBuilder.build();
+            title[w] = titleBuilder.build();
+        }
+        CollectionStats collectionStats = stats.build();
+        return new SearchIndex() {
+            public Integer getWordIdIfExists(String word) { return WORDS.contains(word) ? WORDS.indexOf(word) : null; }
+            public PostingList getBodyPostings(int wordId) { return body[wordId]; }
+            public PostingList getTitlePostings(int wordId) { return title[wordId]; }
+            public PostingList getBodyPositions(int wordId) { return PostingList.EMPTY_POSITIONAL; }
+            public PostingList getTitlePositions(int wordId) { return PostingList.EMPTY_POSITIONAL; }
+            public List<Integer> getAllPageIds() { return List.of(); }
+            public InvertedIndexManager.PageInfo getPageInfo(int pageId) {
+                return new InvertedIndexManager.PageInfo(getPageUrl(pageId), "", 0, 0);
+            }
+            public String getPageUrl(int pageId) { return site + pageId; }
+            public List<Integer> getParentPageIds(int pageId, int limit) { return List.of(); }
+            public int getMaxTFForPageId(int pageId) { return 8; }
+            public CollectionStats getCollectionStats() { return collectionStats; }
+            public long getGeneration() { return 1; }
+            public Map<String, Integer> getTopKeywords(int pageId, int limit) { return Map.of(); }
+            public void close() { }
+        };
+    }
+
+    @Test
+    public void parallelScoringRanksLikeOneThread() throws IOException {
+        String[] queries = {
+                "xa xb", "xa xb xc xd xe", "xd xe", "xe",                 // ranked, MaxScore
+                "xa AND xb", "xa -xc", "xc OR xd NOT xe", "+xb +xd xa",   // boolean plans
+                "title:xa xb"};
+        try (SearchEngine engine = new SearchEngine(syntheticIndex("http://a/"))) {
+            engine.setResultCacheLimits(0, 0);
+            ResultCache.Results[] serial = new ResultCache.Results[queries.length];
+            for (int i = 0; i < queries.length; i++) {
+                serial[i] = engine.rank(queries[i]);
+                assertTrue(serial[i].pageIds().length > 0, queries[i]);
+            }
+            for (int parallelism : new int[]{2, 3, 7, 64}) {
+                engine.setParallelism(parallelism, 1);      // split every query
+                for (int i = 0; i < queries.length; i++) {
+                    ResultCache.Results parallel = engine.rank(queries[i]);
+                    String message = queries[i] + " on " + parallelism + " threads";
+                    assertArrayEquals(serial[i].pageIds(), parallel.pageIds(), message);
+                    assertArrayEquals(serial[i].scores(), parallel.scores(), message);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pagesAreLookedUpInTheIndexThatRankedThem() throws IOException {
+        try (SearchEngine engine = new SearchEngine(syntheticIndex("http://a/"))) {
+            ResultCache.Results ranked = engine.rank("xa xb");
+            assertSame(engine.getIndex(), ranked.index());
+
+            SearchEngine.ResultPage page = engine.search("xa xb", 0, 3);
+            assertSame(engine.getIndex(), page.index());
+            assertEquals("http://a/" + ranked.pageIds()[0], page.results().get(0).getUrl());
+
+            // results ranked in another index (as before a new snapshot) are looked up there
+            List<SearchEngine.SearchResult> results = engine.hydrate(ranked.in(syntheticIndex("http://b/")), 0, 3);
+            assertEquals(3, results.size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals("http://b/" + ranked.pageIds()[i], results.get(i).getUrl());
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TermDictionaryTest {
+
+    /** Words sharing long prefixes, so most of them are front-coded, over many blocks of 16 */
+    private static Map<String, Integer> words(int n) {
+        Map<String, Integer> words = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            words.put("term" + Integer.toString(i, 7), i);
+        }
+        return words;
+    }
+
+    @Test
+    public void findsEveryWordAcrossBlocks() {
+        Map<String, Integer> words = words(1_000);
+        TermDictionary dictionary = new TermDictionary(words);
+
+        assertEquals(words.size(), dictionary.size());
+        words.forEach((word, id) -> assertEquals(id, dictionary.get(word), word));
+    }
+
+    @Test
+    public void missingWordsAreNotFound() {
+        TermDictionary dictionary = new TermDictionary(words(100));
+
+        assertEquals(-1, dictionary.get(""));
+        assertEquals(-1, dictionary.get("a"));          // before the first block
+        assertEquals(-1, dictionary.get("term"));       // a prefix of every word
+        assertEquals(-1, dictionary.get("term00"));     // between two words of a block
+        assertEquals(-1, dictionary.get("zzz"));        // after the last block
+        assertEquals(-1, new TermDictionary(new HashMap<>()).get("term0"));
+    }
+
+    @Test
+    public void firstWordOfABlockAndItsNeighbours() {
+        Map<String, Integer> words = words(100);
+        TermDictionary dictionary = new TermDictionary(words);
+        List<String> sorted = new ArrayList<>(new TreeMap<>(words).keySet());
+        for (int block = 16; block < sorted.size(); block += 16) {
+            for (String word : sorted.subList(block - 1, block + 1)) {
+                assertEquals(words.get(word), dictionary.get(word), word);
+            }
+        }
+    }
+
+    @Test
+    public void wordIdZeroIsFound() {
+        Map<String, Integer> words = new HashMap<>();
+        words.put("alpha", 0);
+        words.put("beta", 1);
+        assertEquals(0, new TermDictionary(words).get("alpha"));
+    }
+
+    @Test
+    public void addedWordsAreFoundBeforeAndAfterARebuild() {
+        TermDictionary dictionary = new TermDictionary(words(100));
+        for (int i = 0; i < 2_000; i++) {
+            dictionary.add("added" + i, 100 + i);
+        }
+        assertEquals(2_100, dictionary.size());
+        for (int i = 0; i < 2_000; i++) {
+            assertEquals(100 + i, dictionary.get("added" + i));
+        }
+        words(100).forEach((word, id) -> assertEquals(id, dictionary.get(word), word));
+    }
+
+    @Test
+    public void prefixVisitsWordsInOrderAcrossBlocksAndPendingWords() {
+        TermDictionary dictionary = new TermDictionary(words(400));
+        dictionary.add("term1x", 1_000);            // pending, in the middle of the prefix range
+        dictionary.add("termz", 1_001);             // pending, outside it
+
+        Map<String, Integer> expected = new TreeMap<>();
+        words(400).forEach((word, id) -> {
+            if (word.startsWith("term1")) expected.put(word, id);
+        });
+        expected.put("term1x", 1_000);
+
+        Map<String, Integer> visited = new LinkedHashMap<>();
+        dictionary.forEachWithPrefix("term1", visited::put);
+        assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(visited.entrySet()));
+    }
+
+    @Test
+    public void utf8WordsSortByTheirBytes() {
+        Map<String, Integer> words = new HashMap<>();
+        String[] all = {"caf", "café", "cafe", "cafés", "香港", "香港大學", "z"};
+        for (int i = 0; i < all.length; i++) {
+            words.put(all[i], i);
+        }
+        TermDictionary dictionary = new TermDictionary(words);
+        for (int i = 0; i < all.length; i++) {
+            assertEquals(i, dictionary.get(all[i]), all[i]);
+        }
+        List<String> visited = new ArrayList<>();
+        dictionary.forEachWithPrefix("caf", (word, id) -> visited.add(word));
+        assertEquals(List.of("caf", "cafe", "café", "cafés"), visited);
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TopScoresTest {
+
+    @Test
+    public void keepsTheBestPagesBestFirst() {
+        TopScores top = new TopScores(3);
+        top.offer(1, 0.5);
+        top.offer(2, 2.0);
+        top.offer(3, 1.0);
+        top.offer(4, 3.0);
+        top.offer(5, 0.1);
+
+        ResultCache.Results results = top.results();
+        assertArrayEquals(new int[]{4, 2, 3}, results.pageIds());
+        assertArrayEquals(new double[]{3.0, 2.0, 1.0}, results.scores());
+        assertEquals(0, top.size());
+    }
+
+    @Test
+    public void equalScoresRankByLowerPageId() {
+        TopScores top = new TopScores(3);
+        for (int pageId : new int[]{9, 4, 7, 1, 8}) {
+            top.offer(pageId, 1.0);
+        }
+        assertArrayEquals(new int[]{1, 4, 7}, top.results().pageIds());
+    }
+
+    @Test
+    public void thresholdIsTheWeakestKeptScoreOnceFull() {
+        TopScores top = new TopScores(2);
+        assertEquals(0, top.threshold());
+        top.offer(3, 2.0);
+        assertEquals(0, top.threshold());
+        top.offer(5, 1.0);
+        assertTrue(top.isFull());
+        assertEquals(1.0, top.threshold());
+
+        // a tie with the weakest page is kept only with a lower page ID
+        assertFalse(top.offer(6, 1.0));
+        assertTrue(top.offer(4, 1.0));
+        assertArrayEquals(new int[]{3, 4}, top.results().pageIds());
+    }
+
+    @Test
+    public void pagesWithoutAScoreAreNotKept() {
+        TopScores top = new TopScores(2);
+        assertFalse(top.offer(1, 0));
+        assertFalse(top.offer(2, -1));
+        assertFalse(new TopScores(0).offer(3, 1.0));
+        assertEquals(0, top.results().pageIds().length);
+    }
+
+    @Test
+    public void matchesAFullSortOfRandomScores() {
+        Random random = new Random(3);
+        for (int round = 0; round < 100; round++) {
+            int k = 1 + random.nextInt(20);
+            List<double[]> offered = new ArrayList<>();
+            TopScores top = new TopScores(k);
+            for (int pageId = random.nextInt(100); pageId >= 0; pageId--) {
+                double score = random.nextInt(10) / 2.0;    // plenty of ties
+                offered.add(new double[]{pageId, score});
+                top.offer(pageId, score);
+            }
+            List<double[]> expected = offered.stream()
+                    .filter(page -> page[1] > 0)
+                    .sorted(Comparator.<double[]>comparingDouble(page -> -page[1]).thenComparingDouble(page -> page[0]))
+                    .limit(k)
+                    .toList();
+
+            ResultCache.Results results = top.results();
+            assertEquals(expected.size(), results.pageIds().length);
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals((int) expected.get(i)[0], results.pageIds()[i]);
+                assertEquals(expected.get(i)[1], results.scores()[i]);
+            }
+        }
+    }
+}